@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One benchmark: a named operation with parameters that is run repeatedly by
+ * Benchmarks. An operation returns a value that depends on its work, so the
+ * JIT cannot remove it.
+ *
+ * @author agent
+ */
+public abstract class Benchmark {
+
+    private final String name;
+    private final Map<String, String> params = new LinkedHashMap<String, String>();
+
+    public Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    public Benchmark param(String key, Object value) {
+        params.put(key, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Returns the unit of work that one operation represents, such as
+     * "pixels" or "compiles". Scores are reported as units per second.
+     * @return the unit
+     */
+    public String getUnit() {
+        return "ops";
+    }
+
+    /**
+     * Returns the number of units one operation performs.
+     * @return the number of units
+     */
+    public long getUnitsPerOp() {
+        return 1;
+    }
+
+    /**
+     * Prepares the benchmark. Called once before the warm-up.
+     * @throws Exception if the benchmark cannot be prepared
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Performs one operation.
+     * @return a value that depends on the work done
+     * @throws Exception if the operation fails
+     */
+    public abstract long run() throws Exception;
+}
@@ -0,0 +1,505 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder.bench;
+
+import imagecoder.FilterCompiler;
+import imagecoder.ImageFilterTask;
+import imagecoder.PixelKernelTask;
+import imagecoder.PointOps;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the Image Coder benchmarks and writes the results as JSON, in the same
+ * layout as JMH's JSON result format, so results can be compared over time.
+ * Every benchmark is warmed up, then measured over a number of fixed-length
+ * iterations; the score is the mean throughput with a 99.9% confidence error.
+ * <p>
+ * Usage: Benchmarks [-o results.json] [-wi N] [-i N] [-r ms] [regex]
+ *
+ * @author agent
+ */
+public class Benchmarks {
+
+    // the intro greyscale example of ControlsFrame
+    static final String GREYSCALE_SNIPPET = "for (int x = 0; x < width(); x++) {\n"
+            + "    setProgress(x, width());\n"
+            + "    for (int y = 0; y < height(); y++) {\n"
+            + "        int avg = ( red(x,y) + green(x,y) + blue(x,y) ) / 3;\n"
+            + "        setRGB(x, y, makeRGB(avg, avg, avg));\n"
+            + "    }\n"
+            + "}\n";
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 500;
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        Benchmarks runner = new Benchmarks();
+        File output = null;
+        Pattern filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-o".equals(args[i]) && i + 1 < args.length) {
+                output = new File(args[++i]);
+            } else if ("-wi".equals(args[i]) && i + 1 < args.length) {
+                runner.warmupIterations = Integer.parseInt(args[++i]);
+            } else if ("-i".equals(args[i]) && i + 1 < args.length) {
+                runner.iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("-r".equals(args[i]) && i + 1 < args.length) {
+                runner.iterationMillis = Long.parseLong(args[++i]);
+            } else {
+                filter = Pattern.compile(args[i]);
+            }
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        addAll(benchmarks);
+        StringBuilder json = new StringBuilder("[\n");
+        boolean first = true;
+        for (Benchmark b : benchmarks) {
+            if (filter != null && !filter.matcher(b.getName()).find()) {
+                continue;
+            }
+            String result = runner.measure(b);
+            json.append(first ? "" : ",\n").append(result);
+            first = false;
+        }
+        json.append("\n]\n");
+
+        if (output != null) {
+            File dir = output.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            Writer w = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+            try {
+                w.write(json.toString());
+            } finally {
+                w.close();
+            }
+            System.out.println("Results written to " + output);
+        } else {
+            System.out.print(json);
+        }
+    }
+
+    /**
+     * Adds every benchmark to list.
+     */
+    static void addAll(List<Benchmark> list) {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY};
+        String[] typeNames = {"INT_RGB", "INT_ARGB", "3BYTE_BGR", "BYTE_GRAY"};
+        for (int i = 0; i < types.length; i++) {
+            for (String accessor : AccessorBenchmark.ACCESSORS) {
+                list.add(new AccessorBenchmark(accessor, types[i], typeNames[i], 512));
+            }
+        }
+        for (int size : new int[]{256, 1024, 2048}) {
+            list.add(new SnippetBenchmark("filter.greyscale", GREYSCALE_SNIPPET, false, size));
+            // the same result through the built-in point operation, on one
+            // thread and on all of them, with scalar loops and, if the JVM
+            // has jdk.incubator.vector, with the Vector API
+            for (boolean vectorized : PointOps.isVectorized() ? new boolean[]{false, true} : new boolean[]{false}) {
+                list.add(new PointOpsBenchmark(size, 1, vectorized));
+                if (Runtime.getRuntime().availableProcessors() > 1) {
+                    list.add(new PointOpsBenchmark(size, Runtime.getRuntime().availableProcessors(), vectorized));
+                }
+            }
+        }
+        // images as decoders return them, filtered as they are and after
+        // the conversion that the loader does once
+        for (int i = 2; i < types.length; i++) {
+            list.add(new NormalizeBenchmark(types[i], typeNames[i], 2048));
+            list.add(new SnippetBenchmark("filter.greyscale", GREYSCALE_SNIPPET, false, 2048,
+                    types[i], typeNames[i]));
+        }
+        list.add(new CompileBenchmark(false));
+        list.add(new CompileBenchmark(true));
+    }
+
+    private String measure(Benchmark b) throws Exception {
+        System.out.println("# " + b.getName() + " " + b.getParams());
+        b.setUp();
+        for (int i = 0; i < warmupIterations; i++) {
+            double score = iterate(b);
+            System.out.printf("  warmup %d: %.3f %s/s%n", i + 1, score, b.getUnit());
+        }
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = iterate(b);
+            System.out.printf("  iteration %d: %.3f %s/s%n", i + 1, scores[i], b.getUnit());
+        }
+
+        double mean = 0;
+        for (double s : scores) {
+            mean += s;
+        }
+        mean /= scores.length;
+        double var = 0;
+        for (double s : scores) {
+            var += (s - mean) * (s - mean);
+        }
+        double stddev = scores.length > 1 ? Math.sqrt(var / (scores.length - 1)) : 0;
+        // z for 99.9%, as an approximation of JMH's Student t interval
+        double error = 3.291 * stddev / Math.sqrt(scores.length);
+        System.out.printf("  result: %.3f +- %.3f %s/s%n", mean, error, b.getUnit());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("  {\n    \"benchmark\": \"").append(b.getName()).append("\",\n");
+        sb.append("    \"mode\": \"thrpt\",\n");
+        sb.append("    \"warmupIterations\": ").append(warmupIterations).append(",\n");
+        sb.append("    \"measurementIterations\": ").append(iterations).append(",\n");
+        sb.append("    \"measurementTime\": \"").append(iterationMillis).append(" ms\",\n");
+        sb.append("    \"params\": {");
+        boolean first = true;
+        for (Map.Entry<String, String> e : b.getParams().entrySet()) {
+            sb.append(first ? "" : ", ").append('"').append(e.getKey()).append("\": \"").append(e.getValue()).append('"');
+            first = false;
+        }
+        sb.append("},\n");
+        sb.append("    \"primaryMetric\": {\n");
+        sb.append("      \"score\": ").append(format(mean)).append(",\n");
+        sb.append("      \"scoreError\": ").append(format(error)).append(",\n");
+        sb.append("      \"scoreUnit\": \"").append(b.getUnit()).append("/s\",\n");
+        sb.append("      \"rawData\": [[");
+        for (int i = 0; i < scores.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(format(scores[i]));
+        }
+        sb.append("]]\n    }\n  }");
+        return sb.toString();
+    }
+
+    private double iterate(Benchmark b) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1000000L;
+        long now;
+        do {
+            sink += b.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        return (double) ops * b.getUnitsPerOp() * 1e9 / (now - start);
+    }
+
+    private static String format(double d) {
+        return String.format(Locale.ROOT, "%.6f", d);
+    }
+
+    /**
+     * Measures one ImageFilterTask accessor, called for every pixel of an
+     * image of the given type.
+     */
+    static class AccessorBenchmark extends Benchmark {
+
+        static final String[] ACCESSORS = {"getRGB", "setRGB", "getR", "makeRGB(int)", "makeRGB(double)", "limit"};
+        private final String accessor;
+        private final int type;
+        private final int size;
+        private BufferedImage image;
+
+        AccessorBenchmark(String accessor, int type, String typeName, int size) {
+            super("accessor." + accessor);
+            this.accessor = accessor;
+            this.type = type;
+            this.size = size;
+            param("type", typeName).param("size", size);
+        }
+
+        @Override
+        public String getUnit() {
+            return "pixels";
+        }
+
+        @Override
+        public long getUnitsPerOp() {
+            return (long) size * size;
+        }
+
+        @Override
+        public void setUp() {
+            image = new BufferedImage(size, size, type);
+            Random r = new Random(42);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    image.setRGB(x, y, r.nextInt());
+                }
+            }
+        }
+
+        @Override
+        public long run() {
+            AccessorTask task = new AccessorTask(accessor);
+            task.filterNow(image);
+            return task.sum;
+        }
+    }
+
+    /**
+     * Calls one accessor for every pixel.
+     */
+    static class AccessorTask extends ImageFilterTask {
+
+        private final String accessor;
+        long sum;
+
+        AccessorTask(String accessor) {
+            this.accessor = accessor;
+        }
+
+        @Override
+        protected void filter() {
+            int w = width();
+            int h = height();
+            long s = 0;
+            if ("getRGB".equals(accessor)) {
+                for (int x = 0; x < w; x++) {
+                    for (int y = 0; y < h; y++) {
+                        s += getRGB(x, y);
+                    }
+                }
+            } else if ("setRGB".equals(accessor)) {
+                for (int x = 0; x < w; x++) {
+                    for (int y = 0; y < h; y++) {
+                        setRGB(x, y, x ^ y);
+                    }
+                }
+            } else if ("getR".equals(accessor)) {
+                for (int x = 0; x < w; x++) {
+                    for (int y = 0; y < h; y++) {
+                        s += getR(x, y);
+                    }
+                }
+            } else if ("makeRGB(int)".equals(accessor)) {
+                for (int x = 0; x < w; x++) {
+                    for (int y = 0; y < h; y++) {
+                        s += makeRGB(x & 0xff, y & 0xff, (x + y) & 0xff);
+                    }
+                }
+            } else if ("makeRGB(double)".equals(accessor)) {
+                for (int x = 0; x < w; x++) {
+                    for (int y = 0; y < h; y++) {
+                        s += makeRGB((x & 0xff) * 0.5, (y & 0xff) * 0.5, ((x + y) & 0xff) * 0.5);
+                    }
+                }
+            } else {
+                for (int x = 0; x < w; x++) {
+                    for (int y = 0; y < h; y++) {
+                        s += limit(x - y, 0, 255);
+                    }
+                }
+            }
+            sum = s;
+        }
+    }
+
+    /**
+     * Compiles a snippet once, and measures filtering an image with it.
+     */
+    static class SnippetBenchmark extends Benchmark {
+
+        private final String code;
+        private final boolean kernelMode;
+        private final int size;
+        private final int type;
+        private FilterCompiler compiler;
+        private BufferedImage image;
+
+        SnippetBenchmark(String name, String code, boolean kernelMode, int size) {
+            this(name, code, kernelMode, size, BufferedImage.TYPE_INT_RGB, null);
+        }
+
+        SnippetBenchmark(String name, String code, boolean kernelMode, int size, int type, String typeName) {
+            super(name);
+            this.code = code;
+            this.kernelMode = kernelMode;
+            this.size = size;
+            this.type = type;
+            param("size", size + "x" + size);
+            if (typeName != null) {
+                param("type", typeName);
+            }
+        }
+
+        @Override
+        public String getUnit() {
+            return "pixels";
+        }
+
+        @Override
+        public long getUnitsPerOp() {
+            return (long) size * size;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            compiler = new FilterCompiler();
+            image = new BufferedImage(size, size, type);
+            Random r = new Random(42);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    image.setRGB(x, y, r.nextInt());
+                }
+            }
+        }
+
+        @Override
+        public long run() throws Exception {
+            ImageFilterTask task = compiler.compile(code, kernelMode);
+            task.filterNow(image);
+            return image.getRGB(size / 2, size / 2);
+        }
+    }
+
+    /**
+     * Measures converting an image to the layout ImageLoader gives every
+     * image, with ImageFilterTask.copyIntPacked().
+     */
+    static class NormalizeBenchmark extends Benchmark {
+
+        private final int type;
+        private final int size;
+        private BufferedImage image;
+
+        NormalizeBenchmark(int type, String typeName, int size) {
+            super("load.normalize");
+            this.type = type;
+            this.size = size;
+            param("type", typeName).param("size", size + "x" + size);
+        }
+
+        @Override
+        public String getUnit() {
+            return "pixels";
+        }
+
+        @Override
+        public long getUnitsPerOp() {
+            return (long) size * size;
+        }
+
+        @Override
+        public void setUp() {
+            image = new BufferedImage(size, size, type);
+            Random r = new Random(42);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    image.setRGB(x, y, r.nextInt());
+                }
+            }
+        }
+
+        @Override
+        public long run() {
+            return ImageFilterTask.copyIntPacked(image).getRGB(size / 2, size / 2);
+        }
+    }
+
+    /**
+     * Measures PointOps.greyscale(), which gives the same result as the
+     * greyscale snippet, with a given number of kernel threads, with or
+     * without the Vector API.
+     */
+    static class PointOpsBenchmark extends Benchmark {
+
+        private final int size;
+        private final int threads;
+        private final boolean vectorized;
+        private int[] pixels;
+
+        PointOpsBenchmark(int size, int threads, boolean vectorized) {
+            super("pointops.greyscale");
+            this.size = size;
+            this.threads = threads;
+            this.vectorized = vectorized;
+            param("size", size + "x" + size).param("threads", threads).param("vector", vectorized);
+        }
+
+        @Override
+        public String getUnit() {
+            return "pixels";
+        }
+
+        @Override
+        public long getUnitsPerOp() {
+            return (long) size * size;
+        }
+
+        @Override
+        public void setUp() {
+            pixels = new int[size * size];
+            Random r = new Random(42);
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = r.nextInt();
+            }
+        }
+
+        @Override
+        public long run() {
+            int old = PixelKernelTask.getPoolSize();
+            boolean oldVectorized = PointOps.isVectorized();
+            PixelKernelTask.setPoolSize(threads);
+            PointOps.setVectorized(vectorized);
+            try {
+                PointOps.greyscale(pixels, 0, size, size, size);
+            } finally {
+                PixelKernelTask.setPoolSize(old);
+                PointOps.setVectorized(oldVectorized);
+            }
+            return pixels[pixels.length / 2];
+        }
+    }
+
+    /**
+     * Measures compiling the greyscale snippet. Cold compiles use a new
+     * compiler each time, so every compile generates a class; warm compiles
+     * hit the class cache.
+     */
+    static class CompileBenchmark extends Benchmark {
+
+        private final boolean warm;
+        private FilterCompiler compiler;
+        private int counter;
+
+        CompileBenchmark(boolean warm) {
+            super("compile." + (warm ? "warm" : "cold"));
+            this.warm = warm;
+        }
+
+        @Override
+        public String getUnit() {
+            return "compiles";
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            compiler = new FilterCompiler();
+            compiler.compile(GREYSCALE_SNIPPET, false);
+        }
+
+        @Override
+        public long run() throws Exception {
+            if (!warm) {
+                compiler = new FilterCompiler();
+            }
+            ImageFilterTask task = compiler.compile(GREYSCALE_SNIPPET, false);
+            return task.hashCode() + counter++;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder.bench;
+
+import imagecoder.FilterCompiler;
+import imagecoder.ImageFilterTask;
+import java.awt.image.BufferedImage;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
+/**
+ * Compiles and runs thousands of distinct snippets, as a long session of
+ * renders does, and reports the loaded and unloaded class counts and the
+ * metaspace after every round. Every snippet is a new class, and the
+ * compiler keeps only its cache, so the number of loaded classes and the
+ * metaspace must stay flat once the cache is full.
+ * <p>
+ * Usage: CompileSoak [-n compiles] [-r compiles per round]
+ * <p>
+ * The exit status is 1 if the loaded classes grew by more than the cache
+ * size from the first round to the last.
+ *
+ * @author agent
+ */
+public class CompileSoak {
+
+    public static void main(String[] args) throws Exception {
+        int compiles = 5000;
+        int round = 500;
+        for (int i = 0; i < args.length; i++) {
+            if ("-n".equals(args[i]) && i + 1 < args.length) {
+                compiles = Integer.parseInt(args[++i]);
+            } else if ("-r".equals(args[i]) && i + 1 < args.length) {
+                round = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                System.err.println("Usage: CompileSoak [-n compiles] [-r compiles per round]");
+                System.exit(2);
+            }
+        }
+
+        ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+        MemoryPoolMXBean metaspace = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                metaspace = pool;
+            }
+        }
+
+        FilterCompiler compiler = new FilterCompiler();
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        System.out.printf("%8s %8s %10s %10s %13s%n", "compiles", "loaded", "total", "unloaded", "metaspace KB");
+        long firstLoaded = -1;
+        long lastLoaded = 0;
+        long start = System.nanoTime();
+        for (int i = 1; i <= compiles; i++) {
+            // alternate filters and kernels, each with a new constant
+            ImageFilterTask task = i % 2 == 0
+                    ? compiler.compile("return getRGB(x, y) ^ " + i + ";", true)
+                    : compiler.compile("for (int y = 0; y < height(); y++) { for (int x = 0; x < width(); x++) {"
+                    + " setRGB(x, y, getRGB(x, y) + " + i + "); } }", false);
+            task.filterNow(image);
+
+            if (i % round == 0 || i == compiles) {
+                // unused filter classes are unloaded by a full collection
+                for (int gc = 0; gc < 3; gc++) {
+                    System.gc();
+                }
+                lastLoaded = classes.getLoadedClassCount();
+                if (firstLoaded < 0) {
+                    firstLoaded = lastLoaded;
+                }
+                System.out.printf("%8d %8d %10d %10d %13s%n", i, lastLoaded,
+                        classes.getTotalLoadedClassCount(), classes.getUnloadedClassCount(),
+                        metaspace == null ? "n/a" : String.valueOf(metaspace.getUsage().getUsed() / 1024));
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d compiles in %.2f s (%.0f compiles/s)%n", compiles, seconds, compiles / seconds);
+
+        long growth = lastLoaded - firstLoaded;
+        if (growth > FilterCompiler.DEFAULT_CACHE_SIZE) {
+            System.out.println("FAIL: " + growth + " more classes are loaded than after the first round");
+            System.exit(1);
+        }
+        System.out.println("OK: " + growth + " more classes are loaded than after the first round");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The operations of PointOps on a row, with the incubator Vector API. Each
+ * step loads as many pixels as fit in the widest SIMD register of the CPU,
+ * and the pixels left at the end of the row go through the scalar loops.
+ * The results are the same as those of the scalar loops.
+ * <p>
+ * This class needs JDK 16 or later and the jdk.incubator.vector module, so it
+ * is kept apart from the other sources, and PointOps loads it by name.
+ *
+ * @author agent
+ */
+class VectorRows extends PointOps.Rows {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    void greyscale(int[] pixels, int start, int end) {
+        int i = start;
+        for (int last = end - LANES; i <= last; i += LANES) {
+            IntVector c = IntVector.fromArray(SPECIES, pixels, i);
+            IntVector sum = channel(c, 16).add(channel(c, 8)).add(channel(c, 0));
+            // sum / 3 for sums up to 765
+            IntVector v = sum.mul(21846).lanewise(VectorOperators.LSHR, 16);
+            grey(c, v).intoArray(pixels, i);
+        }
+        super.greyscale(pixels, i, end);
+    }
+
+    @Override
+    void luminance(int[] pixels, int start, int end) {
+        int i = start;
+        for (int last = end - LANES; i <= last; i += LANES) {
+            IntVector c = IntVector.fromArray(SPECIES, pixels, i);
+            IntVector v = channel(c, 16).mul(77).add(channel(c, 8).mul(150)).add(channel(c, 0).mul(29))
+                    .add(128).lanewise(VectorOperators.LSHR, 8);
+            grey(c, v).intoArray(pixels, i);
+        }
+        super.luminance(pixels, i, end);
+    }
+
+    @Override
+    void brightnessContrast(int[] pixels, int start, int end, int f, int add) {
+        int i = start;
+        for (int last = end - LANES; i <= last; i += LANES) {
+            IntVector c = IntVector.fromArray(SPECIES, pixels, i);
+            IntVector r = scale(channel(c, 16), f, add);
+            IntVector g = scale(channel(c, 8), f, add);
+            IntVector b = scale(channel(c, 0), f, add);
+            c.and(0xff000000).or(r.lanewise(VectorOperators.LSHL, 16))
+                    .or(g.lanewise(VectorOperators.LSHL, 8)).or(b).intoArray(pixels, i);
+        }
+        super.brightnessContrast(pixels, i, end, f, add);
+    }
+
+    @Override
+    void invert(int[] pixels, int start, int end) {
+        int i = start;
+        for (int last = end - LANES; i <= last; i += LANES) {
+            IntVector.fromArray(SPECIES, pixels, i).lanewise(VectorOperators.XOR, 0x00ffffff)
+                    .intoArray(pixels, i);
+        }
+        super.invert(pixels, i, end);
+    }
+
+    @Override
+    void swapRedBlue(int[] pixels, int start, int end) {
+        int i = start;
+        for (int last = end - LANES; i <= last; i += LANES) {
+            IntVector c = IntVector.fromArray(SPECIES, pixels, i);
+            c.and(0xff00ff00).or(channel(c, 16)).or(channel(c, 0).lanewise(VectorOperators.LSHL, 16))
+                    .intoArray(pixels, i);
+        }
+        super.swapRedBlue(pixels, i, end);
+    }
+
+    @Override
+    void blend(int[] pixels, int start, int end, int[] src, int srcStart, int a) {
+        int i = start;
+        int s = srcStart;
+        for (int last = end - LANES; i <= last; i += LANES, s += LANES) {
+            IntVector c = IntVector.fromArray(SPECIES, pixels, i);
+            IntVector d = IntVector.fromArray(SPECIES, src, s);
+            // two channels at a time, as in the scalar loop
+            IntVector rb = c.and(0x00ff00ff);
+            IntVector g = c.and(0x0000ff00);
+            rb = rb.add(d.and(0x00ff00ff).sub(rb).mul(a).lanewise(VectorOperators.ASHR, 8)).and(0x00ff00ff);
+            g = g.add(d.and(0x0000ff00).sub(g).mul(a).lanewise(VectorOperators.ASHR, 8)).and(0x0000ff00);
+            c.and(0xff000000).or(rb).or(g).intoArray(pixels, i);
+        }
+        super.blend(pixels, i, end, src, s, a);
+    }
+
+    private static IntVector channel(IntVector c, int shift) {
+        return c.lanewise(VectorOperators.LSHR, shift).and(0xff);
+    }
+
+    private static IntVector grey(IntVector c, IntVector v) {
+        return c.and(0xff000000).or(v.lanewise(VectorOperators.LSHL, 16))
+                .or(v.lanewise(VectorOperators.LSHL, 8)).or(v);
+    }
+
+    private static IntVector scale(IntVector v, int f, int add) {
+        return v.mul(f).add(add).lanewise(VectorOperators.ASHR, 8).max(0).min(255);
+    }
+}
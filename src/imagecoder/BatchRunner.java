@@ -0,0 +1,602 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import util.ImageFileChooser;
+import util.RawImageFile;
+
+/**
+ * Applies a snippet to a set of image files without a user interface. The
+ * snippet is compiled once. The files then go through a pipeline of three
+ * stages, decode, filter and encode, so reading and writing files overlaps
+ * with filtering. Each stage has its own threads, and hands its images to the
+ * next stage through a bounded queue, so a stage waits when the next one
+ * falls behind, and at most a few images per thread are in memory at any
+ * time.
+ *
+ * @author agent
+ */
+public class BatchRunner {
+
+    public static final String USAGE = "Usage: imagecoder.Main --batch [options] snippet input output-dir\n"
+            + "  snippet      file containing the snippet of code\n"
+            + "  input        a directory, or a pattern such as photos/*.jpg\n"
+            + "  output-dir   directory the filtered images are written to\n"
+            + "Options:\n"
+            + "  --kernel     the snippet is the body of int pixel(int x, int y)\n"
+            + "  --threads N  number of threads per stage (default: number of processors)\n"
+            + "  --format F   image format to write, such as png (default: format of input)\n"
+            + "  --stream H   with --kernel: process images in strips, for images larger\n"
+            + "               than memory; H is the number of rows the kernel reads\n"
+            + "               above and below its pixel\n"
+            + "  --strip N    number of rows per strip with --stream (default: 256)\n";
+    private final FilterCompiler compiler;
+    private final String code;
+    private final boolean kernelMode;
+    private final int threads;
+    private String format;
+    private StripProcessor stripProcessor;
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
+    private Listener listener;
+    private volatile long timeLimit;
+    private volatile boolean cancelled;
+    // the filters that are running, so cancel() can stop them
+    private final Set<ImageFilterTask> running =
+            Collections.newSetFromMap(new ConcurrentHashMap<ImageFilterTask, Boolean>());
+    // marks the end of the images in a queue between stages
+    private static final Job END = new Job(null);
+
+    /**
+     * Receives the result of every file, on the thread of the stage that
+     * finished it.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a file is done.
+         * @param file the input file
+         * @param outFile the output file, or null if the file failed
+         * @param millis the time it took
+         * @param error the error, or null if the file succeeded
+         */
+        void fileDone(File file, File outFile, long millis, Throwable error);
+    }
+
+    /**
+     * Creates a batch runner and compiles code.
+     * @param compiler the compiler to use
+     * @param code the snippet of code
+     * @param kernelMode true if code is the body of pixel(x, y)
+     * @param threads the number of threads of every stage
+     * @throws Exception if code cannot be compiled
+     */
+    public BatchRunner(FilterCompiler compiler, String code, boolean kernelMode, int threads) throws Exception {
+        this.compiler = compiler;
+        this.code = code;
+        this.kernelMode = kernelMode;
+        this.threads = threads;
+        compiler.compile(code, kernelMode);
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the format the images are written in, or null to write every
+     * image in the format of its input file.
+     * @param format the informal name of the format, such as png
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * Makes this runner process every image in strips, so images need not fit
+     * in memory. The snippet must be a kernel.
+     * @param halo the number of rows above and below a pixel that the kernel reads
+     * @param stripHeight the number of rows computed at a time
+     * @throws Exception if the snippet is not a kernel or cannot be compiled
+     */
+    public void setStreaming(int halo, int stripHeight) throws Exception {
+        if (!kernelMode) {
+            throw new IllegalStateException("Streaming requires a per-pixel kernel.");
+        }
+        stripProcessor = new StripProcessor(compiler, code, halo, stripHeight);
+        stripProcessor.setTimeLimit(timeLimit);
+    }
+
+    public long getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * Sets the time the filter may take per image, or per strip when
+     * streaming. A file that takes longer fails.
+     * @param millis the time limit in milliseconds, or 0 for no limit
+     */
+    public void setTimeLimit(long millis) {
+        timeLimit = millis;
+        if (stripProcessor != null) {
+            stripProcessor.setTimeLimit(millis);
+        }
+    }
+
+    /**
+     * Sets the streams progress and errors are printed to.
+     * @param out the stream for progress, or null to print none
+     * @param err the stream for errors, or null to print none
+     */
+    public void setOutput(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Makes run() skip the files that were not filtered yet, stops the
+     * filters that are running, and makes run() return when the files that
+     * were filtered are written. The skipped and stopped files are not
+     * counted as failed, and are not passed to the listener.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (ImageFilterTask task : running) {
+            task.requestCancel();
+        }
+        if (stripProcessor != null) {
+            stripProcessor.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Filters every file in files and writes the results into outputDir.
+     * @param files the image files to filter
+     * @param outputDir the directory to write the results into
+     * @return the number of files that failed, not counting files skipped
+     * after cancel()
+     * @throws InterruptedException if interrupted while waiting for the
+     * stages; their threads are interrupted too
+     */
+    public int run(List<File> files, File outputDir) throws InterruptedException {
+        long start = System.nanoTime();
+        Pipeline pipeline = new Pipeline(files, outputDir);
+        pipeline.run();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int failed = pipeline.failed.get();
+        int done = files.size() - failed - pipeline.skipped.get();
+        if (out != null) {
+            out.printf("%d images in %.2f s (%.2f images/s), %d failed%n",
+                    done, seconds, done / Math.max(seconds, 1e-9), failed);
+        }
+        return failed;
+    }
+
+    /**
+     * A file on its way through the pipeline.
+     */
+    private static class Job {
+
+        final File file;
+        final long start = System.nanoTime();
+        BufferedImage image;
+
+        Job(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * One run of the stages over a list of files.
+     */
+    private class Pipeline {
+
+        private final List<File> files;
+        private final File outputDir;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(threads);
+        private final BlockingQueue<Job> filtered = new ArrayBlockingQueue<Job>(threads);
+
+        Pipeline(List<File> files, File outputDir) {
+            this.files = files;
+            this.outputDir = outputDir;
+        }
+
+        void run() throws InterruptedException {
+            Thread[] decoders = start("decode", new Runnable() {
+
+                public void run() {
+                    decodeFiles();
+                }
+            });
+            Thread[] filters = start("filter", new Runnable() {
+
+                public void run() {
+                    filterImages();
+                }
+            });
+            Thread[] encoders = start("encode", new Runnable() {
+
+                public void run() {
+                    encodeImages();
+                }
+            });
+            try {
+                // every stage ends when the one before it has ended
+                join(decoders);
+                end(decoded);
+                join(filters);
+                end(filtered);
+                join(encoders);
+            } catch (InterruptedException e) {
+                interrupt(decoders);
+                interrupt(filters);
+                interrupt(encoders);
+                throw e;
+            }
+        }
+
+        private void decodeFiles() {
+            int i;
+            while ((i = next.getAndIncrement()) < files.size()) {
+                Job job = new Job(files.get(i));
+                if (cancelled) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                try {
+                    if (isStreamed(job.file)) {
+                        // strips are read, filtered and written in one go
+                        File outFile = getOutputFile(job.file, outputDir);
+                        stripProcessor.process(job.file, outFile, getOutputFormat(job.file));
+                        done(job, outFile, null);
+                    } else {
+                        job.image = decode(job.file);
+                        decoded.put(job);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable e) {
+                    failed(job, e);
+                }
+            }
+        }
+
+        private void filterImages() {
+            try {
+                Job job;
+                while ((job = decoded.take()) != END) {
+                    if (cancelled) {
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        ImageFilterTask task = compiler.compile(code, kernelMode);
+                        task.setTimeLimit(timeLimit);
+                        running.add(task);
+                        try {
+                            // cancel() may have missed the task
+                            if (cancelled) {
+                                task.requestCancel();
+                            }
+                            task.filterNow(job.image);
+                        } finally {
+                            running.remove(task);
+                        }
+                    } catch (Throwable e) {
+                        failed(job, e);
+                        continue;
+                    }
+                    filtered.put(job);
+                }
+            } catch (InterruptedException e) {
+                // run() was interrupted
+            }
+        }
+
+        private void encodeImages() {
+            try {
+                Job job;
+                while ((job = filtered.take()) != END) {
+                    try {
+                        File outFile = encode(job.image, job.file, outputDir);
+                        job.image = null;
+                        done(job, outFile, null);
+                    } catch (Throwable e) {
+                        done(job, null, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // run() was interrupted
+            }
+        }
+
+        private void failed(Job job, Throwable error) {
+            // an image writer may wrap the exception of a stopped strip
+            for (Throwable e = error; cancelled && e != null; e = e.getCause()) {
+                if (e instanceof CancellationException) {
+                    // stopped by cancel()
+                    skipped.incrementAndGet();
+                    return;
+                }
+            }
+            done(job, null, error);
+        }
+
+        private void done(Job job, File outFile, Throwable error) {
+            long ms = (System.nanoTime() - job.start) / 1000000;
+            if (error == null) {
+                if (out != null) {
+                    out.println(job.file.getPath() + " -> " + outFile.getPath() + " (" + ms + " ms)");
+                }
+            } else {
+                failed.incrementAndGet();
+                if (err != null) {
+                    err.println(job.file.getPath() + ": " + error);
+                }
+            }
+            if (listener != null) {
+                listener.fileDone(job.file, outFile, ms, error);
+            }
+        }
+
+        private Thread[] start(String stage, Runnable loop) {
+            Thread[] stageThreads = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                stageThreads[i] = new Thread(loop, "ImageCoder-batch-" + stage + "-" + (i + 1));
+                stageThreads[i].start();
+            }
+            return stageThreads;
+        }
+
+        private void end(BlockingQueue<Job> queue) throws InterruptedException {
+            for (int i = 0; i < threads; i++) {
+                queue.put(END);
+            }
+        }
+
+        private void join(Thread[] stageThreads) throws InterruptedException {
+            for (Thread t : stageThreads) {
+                t.join();
+            }
+        }
+
+        private void interrupt(Thread[] stageThreads) {
+            for (Thread t : stageThreads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns true if file is processed in strips by the strip processor
+     * instead of by the stages. Raw files are read and written whole, and
+     * quickly, without strips.
+     */
+    private boolean isStreamed(File file) {
+        return stripProcessor != null && !RawImageFile.isRawFile(file)
+                && !RawImageFile.SUFFIX.equals(getOutputFormat(file));
+    }
+
+    private BufferedImage decode(File file) throws IOException {
+        BufferedImage image = RawImageFile.isRawFile(file) ? RawImageFile.read(file) : ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Cannot read this type of image.");
+        }
+        // like images opened in the window, so filters write the int array
+        // directly instead of a converted copy
+        return ImageFilterTask.toIntPacked(image);
+    }
+
+    private File encode(BufferedImage image, File file, File outputDir) throws IOException {
+        String ext = getOutputFormat(file);
+        File outFile = getOutputFile(file, outputDir);
+        if (RawImageFile.SUFFIX.equals(ext)) {
+            RawImageFile.write(image, outFile);
+        } else if (ext == null || !ImageIO.write(image, ext, outFile)) {
+            throw new IOException("This file type (" + ext + ") is not supported by your Java system.");
+        }
+        return outFile;
+    }
+
+    private String getOutputFormat(File file) {
+        return format != null ? format : ImageFileChooser.getExtension(file);
+    }
+
+    private File getOutputFile(File file, File outputDir) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (format != null && dot > 0) {
+            name = name.substring(0, dot) + '.' + format;
+        }
+        return new File(outputDir, name);
+    }
+
+    /**
+     * Returns the readable image files matching input. If input is a
+     * directory, all readable images in it are returned. Otherwise the last
+     * part of input is a pattern in which * and ? are wildcards.
+     * @param input a directory or a pattern
+     * @return the matching files, sorted by name
+     */
+    public static List<File> listFiles(String input) {
+        File dir = new File(input);
+        Pattern pattern = null;
+        if (!dir.isDirectory()) {
+            pattern = globToPattern(dir.getName());
+            dir = dir.getAbsoluteFile().getParentFile();
+        }
+
+        List<File> files = new ArrayList<File>();
+        File[] list = dir == null ? null : dir.listFiles();
+        if (list == null) {
+            return files;
+        }
+        java.util.Arrays.sort(list);
+        for (File f : list) {
+            String ext = ImageFileChooser.getExtension(f);
+            if (f.isFile() && ext != null && ImageFileChooser.canReadSuffix(ext)
+                    && (pattern == null || pattern.matcher(f.getName()).matches())) {
+                files.add(f);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns true if dir is the directory of one of files, after resolving
+     * relative paths and links, so writing the results into dir could
+     * overwrite the originals.
+     * @param dir the output directory
+     * @param files the input files
+     * @return true if dir holds one of files
+     * @throws IOException if a path cannot be resolved
+     */
+    public static boolean isInputDirectory(File dir, List<File> files) throws IOException {
+        File canonical = dir.getCanonicalFile();
+        for (File f : files) {
+            if (canonical.equals(f.getCanonicalFile().getParentFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder sb = new StringBuilder(glob.length() + 16);
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                sb.append(".*");
+            } else if (c == '?') {
+                sb.append('.');
+            } else {
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                sb.append(buf, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Runs a batch from the command line. See USAGE for the arguments.
+     * @param args the command line arguments, without --batch
+     * @return the exit status
+     */
+    public static int runFromCommandLine(String[] args) {
+        boolean kernelMode = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String format = null;
+        int halo = -1;
+        int stripHeight = StripProcessor.DEFAULT_STRIP_HEIGHT;
+        List<String> params = new ArrayList<String>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("--kernel".equals(args[i])) {
+                    kernelMode = true;
+                } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                } else if ("--format".equals(args[i]) && i + 1 < args.length) {
+                    format = args[++i].toLowerCase();
+                } else if ("--stream".equals(args[i]) && i + 1 < args.length) {
+                    halo = Math.max(0, Integer.parseInt(args[++i]));
+                } else if ("--strip".equals(args[i]) && i + 1 < args.length) {
+                    stripHeight = Math.max(1, Integer.parseInt(args[++i]));
+                } else {
+                    params.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.print(USAGE);
+            return 2;
+        }
+        if (params.size() != 3 || (halo >= 0 && !kernelMode)) {
+            System.err.print(USAGE);
+            return 2;
+        }
+
+        try {
+            String code = readFile(new File(params.get(0))).trim();
+            List<File> files = listFiles(params.get(1));
+            File outputDir = new File(params.get(2));
+            if (files.isEmpty()) {
+                System.err.println("No readable images found: " + params.get(1));
+                return 1;
+            }
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                System.err.println("Cannot create output directory: " + outputDir);
+                return 1;
+            }
+            if (isInputDirectory(outputDir, files)) {
+                System.err.println("Please choose another output directory than the one the images are in.");
+                return 1;
+            }
+            if (format != null && !ImageFileChooser.canWriteSuffix(format)) {
+                System.err.println("This file type (" + format + ") is not supported by your Java system.");
+                return 1;
+            }
+
+            BatchRunner runner = new BatchRunner(new FilterCompiler(), code, kernelMode, threads);
+            runner.setFormat(format);
+            if (halo >= 0) {
+                runner.setStreaming(halo, stripHeight);
+            }
+            return runner.run(files, outputDir) == 0 ? 0 : 1;
+        } catch (javassist.CannotCompileException e) {
+            System.err.println("Error in source: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
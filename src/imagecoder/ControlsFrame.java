@@ -22,9 +22,16 @@ import java.awt.image.BufferedImage;
 import java.beans.*;
 import java.io.*;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
 import javassist.*;
-import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import net.sf.robocode.ui.editor.*;
 import util.*;
 
@@ -41,12 +48,29 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
     private JButton revertButton = new JButton(new ImageIcon(getClass().getResource("images/revert.png")));
     private JButton undoButton = new JButton(new ImageIcon(getClass().getResource("images/undo.png")));
     private JButton renderButton = new JButton(new ImageIcon(getClass().getResource("images/render.png")));
+    private JButton zoomInButton = new JButton(new ImageIcon(getClass().getResource("images/zoom.png")));
+    private JButton zoomOutButton = new JButton(new ImageIcon(getClass().getResource("images/zoom2.png")));
     private JButton wwwButton = new JButton(new ImageIcon(getClass().getResource("images/www.png")));
+    private JButton previewButton = new JButton("Preview");
+    private JButton cancelButton = new JButton("Cancel");
+    private JButton previousButton = new JButton("Previous");
+    private JButton nextButton = new JButton("Next");
+    private JButton applyToAllButton = new JButton("Apply to all");
+    private JCheckBox kernelModeBox = new JCheckBox("Per pixel");
     private JLabel imageSizeLabel = new JLabel(makeSizeString(0, 0),
-            new ImageIcon(getClass().getResource("images/size.png")), SwingConstants.LEADING);
+            new ImageIcon(getClass().getResource("images/size.png")), SwingConstants.LEADING) {
+
+        // Java2D caches the image in video memory only after it was drawn a
+        // few times, so the acceleration is looked up whenever the tip shows
+        @Override
+        public String getToolTipText() {
+            BufferedImage image = imagePanel == null ? null : imagePanel.getLastImage();
+            return image == null ? null : makeImageToolTip(image, imagePanel.isImageAccelerated());
+        }
+    };
     private JLabel mouseXYLabel = new JLabel(makeXYString(0, 0),
             new ImageIcon(getClass().getResource("images/mouse.png")), SwingConstants.LEADING);
-    private JLabel emptyLabel = new JLabel(" ");
+    private JLabel renderStatsLabel = new JLabel(" ");
     private JLabel mouseColorLabel = new JLabel(makeColorString(0),
             new ImageIcon(getClass().getResource("images/color.png")), SwingConstants.LEADING);
     private JProgressBar progressBar = new JProgressBar();
@@ -57,9 +81,39 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
     private ImageFrame imageFrame;
     private ImageLabel imagePanel;
     // class generator
-    private int sequenceNumber = 0;
-    // background task
-    private ImageFilterTask task;
+    private FilterCompiler compiler = new FilterCompiler();
+    // background task, and the seconds it may take before it is stopped, or 0
+    // for no limit; the default is set with -Dimagecoder.timeLimitSeconds
+    private volatile ImageFilterTask task;
+    private JSpinner timeLimitSpinner = new JSpinner(new SpinnerNumberModel(
+            (int) Math.min(3600, Math.max(0, Long.getLong("imagecoder.timeLimitSeconds", 60))), 0, 3600, 5));
+    private volatile long timeLimit = 1000L * (Integer) timeLimitSpinner.getValue();
+    // renders and previews run one at a time, and only the latest request waits
+    private RenderScheduler renderScheduler = new RenderScheduler("ImageCoder-render");
+    private RenderScheduler previewScheduler = new RenderScheduler("ImageCoder-preview");
+    // measurements of all renders, also available over JMX, and appended to
+    // the CSV file set with -Dimagecoder.renderLog
+    private RenderStats renderStats = new RenderStats(compiler, renderScheduler);
+    // reads images off the event dispatch thread, and keeps recently read ones;
+    // the size of the cache is set with -Dimagecoder.imageCacheMB
+    private ImageLoader imageLoader = new ImageLoader("ImageCoder-loader",
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            1024L * 1024 * Integer.getInteger("imagecoder.imageCacheMB", 256));
+    // writes saved images in the background, with the last compression chosen
+    private ImageSaver imageSaver = new ImageSaver("ImageCoder-saver");
+    private int lastPngLevel = 1;
+    private int lastQuality = 85;
+    // the file that was opened last, until it is read
+    private File loadingFile;
+    // the files that were dropped together, and the batch applied to them
+    private Workspace workspace;
+    private BatchTask batchTask;
+    private static final Executor CALLING_THREAD = new Executor() {
+
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
     private static final String INTRO_TEXT = "// Welcome to Image Coder!\n"
             + "//\n"
             + "// This is Image Coder's main window. You type snippets of Java code here to\n"
@@ -87,6 +141,7 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
         initLayout();
         initEditor();
         initImagePanelCallbacks();
+        initRenderStats();
 
         // frames behavior
         setTransferHandler(new FileDropHandler(this));
@@ -107,17 +162,38 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
         } else if (src == saveImageAsButton) {
             saveImageAsEvent();
         } else if (src == renderButton) {
-            new Thread() {
+            scheduleRender();
+        } else if (src == previewButton) {
+            previewScheduler.submit(new RenderScheduler.Job() {
 
-                @Override
-                public void run() {
-                    createAndFilter();
+                public void run(RenderMetrics metrics) {
+                    createAndPreview(metrics);
                 }
-            }.start();
+            });
+        } else if (src == cancelButton) {
+            ImageFilterTask t = task;
+            if (t != null) {
+                t.requestCancel();
+            }
+            if (batchTask != null) {
+                batchTask.runner.cancel();
+            }
+        } else if (src == previousButton) {
+            openImage(workspace.select(workspace.getIndex() - 1));
+        } else if (src == nextButton) {
+            openImage(workspace.select(workspace.getIndex() + 1));
+        } else if (src == applyToAllButton) {
+            applyToAllEvent();
         } else if (src == undoButton) {
             undoEvent();
         } else if (src == revertButton) {
             revertEvent();
+        } else if (src == zoomInButton) {
+            imagePanel.zoomIn();
+            updateButtons();
+        } else if (src == zoomOutButton) {
+            imagePanel.zoomOut();
+            updateButtons();
         } else if (src == wwwButton) {
             try {
                 Desktop.getDesktop().browse(URI.create(WWW_URI));
@@ -150,29 +226,95 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
             return;
         }
 
-        try {
-            openImage(file);
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this,
-                    "Error while reading file:\n" + e.getMessage(),
+        workspace = null;
+        openImage(file);
+    }
+
+    /**
+     * Opens the first of files, and lets the user step through the others.
+     * Directories are replaced by the images in them.
+     * @param files the image files and directories
+     */
+    public void openImages(List<File> files) {
+        List<File> images = Workspace.listImageFiles(files);
+        if (images.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "There are no images that can be read.",
                     "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+        workspace = images.size() > 1 ? new Workspace(images, imageLoader) : null;
+        openImage(workspace != null ? workspace.select(0) : images.get(0));
     }
 
-    public void openImage(File file) throws Exception {
-        BufferedImage image = ImageIO.read(file);
-        if (image == null) {
-            throw new Exception("Cannot read this type of image.");
+    private String makeTitle(File file) {
+        return makeTitle(file, workspace != null && file == workspace.getFile());
+    }
+
+    /**
+     * Returns the title of the image frame for file.
+     * @param file the file that holds the image
+     * @param selected true if the image is the selected file of the workspace,
+     * or was saved from it, so its position in the workspace is shown
+     */
+    private String makeTitle(File file, boolean selected) {
+        if (!selected) {
+            return file.getName();
         }
-        imageSizeLabel.setText(makeSizeString(image.getWidth(), image.getHeight()));
-        imageFrame.setImage(image);
-        imageFrame.setTitle(file.getName());
-        updateButtons();
+        return file.getName() + " (" + (workspace.getIndex() + 1) + " of " + workspace.size() + ")";
+    }
+
+    /**
+     * Reads file in the background, and shows it when it is read. Large
+     * images may show a subsampled preview first. Errors are shown in a
+     * dialog. If another file is opened before this one is read, this one is
+     * not shown.
+     * @param file the image file to open
+     */
+    public void openImage(File file) {
+        loadingFile = file;
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        imageLoader.load(file, new ImageLoader.Listener() {
+
+            public void previewLoaded(File file, BufferedImage preview, int width, int height) {
+                if (file != loadingFile) {
+                    return;
+                }
+                imageSizeLabel.setText(makeSizeString(width, height));
+                imageFrame.setLoadingPreview(preview, width, height);
+                imageFrame.setTitle(makeTitle(file));
+                updateButtons();
+            }
+
+            public void imageLoaded(File file, BufferedImage image) {
+                if (file != loadingFile) {
+                    return;
+                }
+                loadingFile = null;
+                setCursor(null);
+                imageSizeLabel.setText(makeSizeString(image.getWidth(), image.getHeight()));
+                imageFrame.setImage(image);
+                imageFrame.setTitle(makeTitle(file));
+                updateButtons();
+            }
+
+            public void loadFailed(File file, Exception e) {
+                if (file != loadingFile) {
+                    return;
+                }
+                loadingFile = null;
+                setCursor(null);
+                imagePanel.clearLoadingPreview();
+                updateButtons();
+                JOptionPane.showMessageDialog(ControlsFrame.this,
+                        "Error while reading file:\n" + e.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
     }
 
     private void saveImageAsEvent() {
         try {
-            BufferedImage image = imagePanel.getLastImage();
+            final BufferedImage image = imagePanel.getLastImage();
             if (image == null) {
                 throw new Exception("There is no image that can be saved.");
             }
@@ -188,17 +330,42 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
             }
 
             String ext = ImageFileChooser.getExtension(file);
-            if (ext == null || !ImageFileChooser.canWriteSuffix(ext)
-                    || !ImageIO.write(image, ext, file)) {
+            if (ext == null || !ImageFileChooser.canWriteSuffix(ext)) {
                 throw new Exception("This file type (" + ext + ") is not supported by your Java system.");
             }
+            float quality = -1;
+            if (ImageSaver.canSetQuality(ext)) {
+                quality = askQuality(ext);
+                if (quality < 0) {
+                    return;
+                }
+            }
 
-            imageFrame.setTitle(file.getName());
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this,
-                    "Error during writing:\n" + e.getMessage()
-                    + "\n\n(There may be a permissions error, or disk is full?)",
-                    "Error", JOptionPane.ERROR_MESSAGE);
+            // filters change the image in place, so the saver gets a copy
+            BufferedImage copy = new BufferedImage(image.getColorModel(), image.copyData(null),
+                    image.isAlphaPremultiplied(), null);
+            final File workspaceFile = workspace == null ? null : workspace.getFile();
+            renderStatsLabel.setText("Saving " + file.getName() + "...");
+            imageSaver.save(copy, file, ext, quality, new ImageSaver.Listener() {
+
+                public void imageSaved(File file, long bytes, long nanos, long pixelBytes) {
+                    // another image may have been opened meanwhile; it keeps its title
+                    if (imagePanel.getLastImage() == image && loadingFile == null) {
+                        imageFrame.setTitle(makeTitle(file,
+                                workspace != null && workspace.getFile() == workspaceFile));
+                    }
+                    renderStatsLabel.setText(String.format("Saved %s: %.1f MB in %.2f s (%.0f MB/s)",
+                            file.getName(), bytes / 1048576.0, nanos / 1e9, pixelBytes / 1048576.0 / (nanos / 1e9)));
+                }
+
+                public void saveFailed(File file, Exception e) {
+                    renderStatsLabel.setText(" ");
+                    JOptionPane.showMessageDialog(ControlsFrame.this,
+                            "Error during writing:\n" + e.getMessage()
+                            + "\n\n(There may be a permissions error, or disk is full?)",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this,
                     e.getMessage(),
@@ -206,39 +373,190 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
         }
     }
 
-    private void createAndFilter() {
-        // buttons off, change cursor
-        updateButtons(false);
-        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+    /**
+     * Asks for the compression of a file of type format. For PNG, this is the
+     * deflate level, from fastest to smallest; for other formats the quality.
+     * @param format the informal name of the format
+     * @return the quality from 0 to 1, or -1 if the dialog was cancelled
+     */
+    private float askQuality(String format) {
+        boolean png = ImageSaver.isPng(format);
+        JSlider slider = png ? new JSlider(0, 9, lastPngLevel) : new JSlider(0, 100, lastQuality);
+        slider.setMajorTickSpacing(png ? 1 : 10);
+        slider.setPaintTicks(true);
+        slider.setPaintLabels(true);
+        String message = png ? "Compression level (0 is fastest, 9 is smallest):" : "Quality:";
+        int ret = JOptionPane.showConfirmDialog(this, new Object[]{message, slider},
+                "Save as " + format.toUpperCase(), JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ret != JOptionPane.OK_OPTION) {
+            return -1;
+        }
+        if (png) {
+            lastPngLevel = slider.getValue();
+            return 1 - lastPngLevel / 9f;
+        }
+        lastQuality = slider.getValue();
+        return lastQuality / 100f;
+    }
 
-        // create the filter
+    /**
+     * Asks for a directory, and applies the code to every file of the
+     * workspace, writing the results into that directory.
+     */
+    private void applyToAllEvent() {
+        if (workspace == null || compileCode() == null) {
+            return;
+        }
+        JFileChooser dirChooser = new JFileChooser(workspace.getFile().getParentFile());
+        dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        dirChooser.setDialogTitle("Save the images in");
+        if (dirChooser.showDialog(this, "Apply to all") != JFileChooser.APPROVE_OPTION
+                || dirChooser.getSelectedFile() == null) {
+            return;
+        }
+        File dir = dirChooser.getSelectedFile().getAbsoluteFile();
         try {
-            progressBar.setIndeterminate(true);
-            String code = codePane.getText().trim();
-            if (code.isEmpty()) {
-                throw new Exception("Nothing to do. Write some code first.");
-            }
-            task = compileCode(code);
-        } catch (CannotCompileException cce) {
-            String mess = cce.getMessage();
-            if (mess.startsWith("[source error]")) {
-                mess = mess.substring(15);
+            if (BatchRunner.isInputDirectory(dir, workspace.getFiles())) {
+                JOptionPane.showMessageDialog(this, "Please choose another directory than the one the images are in.",
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                return;
             }
-            JOptionPane.showMessageDialog(this, mess,
-                    "Error in source", JOptionPane.ERROR_MESSAGE);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(),
+                    "General error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        BatchRunner runner;
+        try {
+            runner = new BatchRunner(compiler, codePane.getText().trim(), kernelModeBox.isSelected(),
+                    Runtime.getRuntime().availableProcessors());
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, e.getMessage(),
                     "General error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        runner.setOutput(null, null);
+        runner.setTimeLimit(timeLimit);
+        batchTask = new BatchTask(runner, workspace.getFiles(), dir);
+        updateButtons(false);
+        progressBar.setIndeterminate(false);
+        progressBar.setValue(progressBar.getMinimum());
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        batchTask.execute();
+    }
+
+    /**
+     * Applies the code to a list of files with a BatchRunner, and shows the
+     * progress of every file.
+     */
+    private class BatchTask extends SwingWorker<Integer, String> implements BatchRunner.Listener {
+
+        private final BatchRunner runner;
+        private final List<File> files;
+        private final File outputDir;
+        private final AtomicInteger done = new AtomicInteger();
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        private final long start = System.nanoTime();
+
+        BatchTask(BatchRunner runner, List<File> files, File outputDir) {
+            this.runner = runner;
+            this.files = files;
+            this.outputDir = outputDir;
+            runner.setListener(this);
+            addPropertyChangeListener(new PropertyChangeListener() {
+
+                public void propertyChange(PropertyChangeEvent evt) {
+                    if ("progress".equals(evt.getPropertyName())) {
+                        progressBar.setValue(getProgress());
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected Integer doInBackground() throws Exception {
+            return runner.run(files, outputDir);
+        }
+
+        public void fileDone(File file, File outFile, long millis, Throwable error) {
+            int n = done.incrementAndGet();
+            if (error != null) {
+                errors.add(file.getName() + ": " + error.getMessage());
+            }
+            setProgress(n * 100 / files.size());
+            publish(file.getName() + (error == null ? " (" + millis + " ms)" : " failed"));
+        }
+
+        @Override
+        protected void process(List<String> chunks) {
+            renderStatsLabel.setText(done.get() + " of " + files.size() + ": " + chunks.get(chunks.size() - 1));
         }
 
+        @Override
+        protected void done() {
+            batchTask = null;
+            restoreUI();
+            try {
+                get();
+            } catch (Exception e) {
+                errors.add(0, e.getMessage());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            renderStatsLabel.setText(String.format("%d of %d images in %.1f s%s", done.get(), files.size(),
+                    seconds, runner.isCancelled() ? ", cancelled" : ""));
+            if (!errors.isEmpty()) {
+                StringBuilder sb = new StringBuilder(errors.size() + " images failed:");
+                for (int i = 0; i < Math.min(10, errors.size()); i++) {
+                    sb.append('\n').append(errors.get(i));
+                }
+                if (errors.size() > 10) {
+                    sb.append("\n...");
+                }
+                JOptionPane.showMessageDialog(ControlsFrame.this, sb.toString(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            } else if (!runner.isCancelled()) {
+                Toolkit.getDefaultToolkit().beep();
+            }
+        }
+    }
+
+    private void scheduleRender() {
+        renderScheduler.submit(new RenderScheduler.Job() {
+
+            public void run(RenderMetrics metrics) {
+                createAndFilter(metrics);
+            }
+        });
+    }
+
+    /**
+     * Compiles the code and applies it to the image. This runs on the render
+     * thread, and returns when the render is completely done.
+     */
+    private void createAndFilter(final RenderMetrics metrics) {
+        // buttons off, change cursor
+        updateButtons(false);
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+        // create the filter
+        progressBar.setIndeterminate(true);
+        metrics.setCode(codePane.getText());
+        metrics.setKernelMode(kernelModeBox.isSelected());
+        long start = System.nanoTime();
+        task = compileCode();
+        metrics.setCompileNanos(System.nanoTime() - start);
         if (task == null) {
             restoreUI();
             return;
         }
+        task.setTimeLimit(timeLimit);
 
         // create a copy of last image
         try {
+            start = System.nanoTime();
             imagePanel.addCopyOfLast();
+            metrics.setCopyNanos(System.nanoTime() - start);
         } catch (OutOfMemoryError e) {
             if (imagePanel.canUndo()) {
                 int ret = JOptionPane.showConfirmDialog(this, "Out of memory:\n"
@@ -255,6 +573,13 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
                 JOptionPane.showMessageDialog(this, "Out of memory.",
                         "Out of memory", JOptionPane.ERROR_MESSAGE);
             }
+            task = null;
+            restoreUI();
+            return;
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not store undo history:\n"
+                    + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            task = null;
             restoreUI();
             return;
         }
@@ -262,63 +587,136 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
         // apply filter to it
         progressBar.setIndeterminate(false);
         progressBar.setValue(progressBar.getMinimum());
-        task.addPropertyChangeListener(new PropertyChangeListener() {
+        final ImageFilterTask renderTask = task;
+        renderTask.addPropertyChangeListener(new PropertyChangeListener() {
 
             public void propertyChange(PropertyChangeEvent evt) {
-                if (task == null) {
-                    return;
-                }
                 if ("progress".equals(evt.getPropertyName())) {
-                    progressBar.setValue(task.getProgress());
-                } else if ("state".equals(evt.getPropertyName())
-                        && SwingWorker.StateValue.DONE.equals(evt.getNewValue())) {
-                    Toolkit.getDefaultToolkit().beep();
-                    progressBar.setValue(progressBar.getMaximum());
-                    imagePanel.repaint();
-                    restoreUI();
-                    task = null;
+                    progressBar.setValue(renderTask.getProgress());
                 }
             }
         });
-        imagePanel.applyFilter(task);
+        updateButtons(false);
+        final int paintCount = imagePanel.getPaintCount();
+        start = System.nanoTime();
+        imagePanel.applyFilter(renderTask, CALLING_THREAD);
+        metrics.setFilterNanos(System.nanoTime() - start);
+        metrics.setPixelsRead(renderTask.getPixelsRead());
+        metrics.setPixelsWritten(renderTask.getPixelsWritten());
+
+        // the next render cannot start before this one is finished on the
+        // EDT too, and the image is complete before it is kept or undone
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
 
-        restoreUI();
+                public void run() {
+                    imagePanel.finishFilter(renderTask);
+                    metrics.setRepaints(imagePanel.getPaintCount() - paintCount);
+                    renderDone(renderTask, metrics);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
     }
 
-    private ImageFilterTask compileCode(String userCode) throws Exception {
-        // get code
-        String filterCode = makeMethod(userCode);
-
-        // prepare ClassPool
-        ClassPool cp = ClassPool.getDefault();
-        cp.insertClassPath(new ClassClassPath(this.getClass()));
-        CtClass imageBase = cp.get("imagecoder.ImageFilterTask");
+    private void renderDone(ImageFilterTask renderTask, RenderMetrics metrics) {
+        task = null;
+        // a cancel that came after the filter finished does not discard it
+        metrics.setCancelled(renderTask.isStopped());
+        try {
+            renderStats.record(metrics);
+        } catch (IOException e) {
+            System.err.println("Could not write render log: " + e.getMessage());
+        }
+        renderStatsLabel.setText(makeRenderStatsString(metrics));
+        renderStatsLabel.setToolTipText(makeRenderStatsToolTip(metrics));
+        if (renderTask.isStopped()) {
+            // discard the partly filtered image
+            undoEvent();
+            if (renderTask.isTimedOut()) {
+                JOptionPane.showMessageDialog(this, "The code took longer than "
+                        + renderTask.getTimeLimit() / 1000 + " seconds, and was stopped.",
+                        "Time limit", JOptionPane.WARNING_MESSAGE);
+            }
+        } else {
+            Toolkit.getDefaultToolkit().beep();
+        }
+        progressBar.setValue(progressBar.getMaximum());
+        imagePanel.repaint();
+        restoreUI();
+    }
 
-        // create new Filter class
-        String filterClassName = "Filter" + (sequenceNumber++);
-        CtClass filterCtClass = cp.makeClass(filterClassName, imageBase);
-        CtMethod filterCtMethod = CtNewMethod.make(filterCode, filterCtClass);
-        filterCtClass.addMethod(filterCtMethod);
-        ImageFilterTask filter = (ImageFilterTask) filterCtClass.toClass().newInstance();
+    /**
+     * Applies the code to a scaled-down copy of the image and shows the
+     * result, without changing the image. Render applies it for real.
+     */
+    private void createAndPreview(RenderMetrics metrics) {
+        long start = System.nanoTime();
+        final ImageFilterTask previewTask = compileCode();
+        metrics.setCompileNanos(System.nanoTime() - start);
+        if (previewTask == null) {
+            return;
+        }
+        previewTask.setTimeLimit(timeLimit);
+        SwingUtilities.invokeLater(new Runnable() {
 
-        return filter;
+            public void run() {
+                imagePanel.applyFilterToProxy(previewTask);
+            }
+        });
     }
 
-    private String makeMethod(String userCode) {
-        StringBuilder sb = new StringBuilder(30 + userCode.length());
-        return sb.append("public void filter() {").append(userCode).append('}').toString();
+    /**
+     * Compiles the code in the code pane, and shows a message if that fails.
+     * @return the filter, or null if the code could not be compiled
+     */
+    private ImageFilterTask compileCode() {
+        try {
+            String code = codePane.getText().trim();
+            if (code.isEmpty()) {
+                throw new Exception("Nothing to do. Write some code first.");
+            }
+            return compiler.compile(code, kernelModeBox.isSelected());
+        } catch (CannotCompileException cce) {
+            String mess = cce.getMessage();
+            if (mess.startsWith("[source error]")) {
+                mess = mess.substring(15);
+            }
+            JOptionPane.showMessageDialog(this, mess,
+                    "Error in source", JOptionPane.ERROR_MESSAGE);
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(),
+                    "General error", JOptionPane.ERROR_MESSAGE);
+        }
+        return null;
     }
 
     private void undoEvent() {
-        imagePanel.undo();
+        try {
+            imagePanel.undo();
+        } catch (IOException e) {
+            showHistoryError(e);
+        }
         updateButtons();
     }
 
     private void revertEvent() {
-        imagePanel.revert();
+        try {
+            imagePanel.revert();
+        } catch (IOException e) {
+            showHistoryError(e);
+        }
         updateButtons();
     }
 
+    private void showHistoryError(IOException e) {
+        JOptionPane.showMessageDialog(this, "Could not read undo history:\n"
+                + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
     private void restoreUI() {
         progressBar.setIndeterminate(false);
         progressBar.setValue(progressBar.getMinimum());
@@ -331,18 +729,29 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
     }
 
     private void updateButtons(boolean enabled) {
+        enabled = enabled && batchTask == null;
         openImageButton.setEnabled(enabled && imagePanel != null);
+        cancelButton.setEnabled(task != null || batchTask != null);
+        previousButton.setEnabled(enabled && workspace != null && workspace.hasPrevious());
+        nextButton.setEnabled(enabled && workspace != null && workspace.hasNext());
+        applyToAllButton.setEnabled(enabled && workspace != null);
 
-        if (!enabled || imagePanel == null || !imagePanel.hasImage()) {
+        if (!enabled || imagePanel == null || !imagePanel.hasImage() || imagePanel.isLoading()) {
             saveImageAsButton.setEnabled(false);
             renderButton.setEnabled(false);
+            previewButton.setEnabled(false);
             undoButton.setEnabled(false);
             revertButton.setEnabled(false);
+            zoomInButton.setEnabled(false);
+            zoomOutButton.setEnabled(false);
         } else {
             saveImageAsButton.setEnabled(true);
             renderButton.setEnabled(imagePanel.canApplyFilter());
+            previewButton.setEnabled(imagePanel.canApplyFilter());
             undoButton.setEnabled(imagePanel.canUndo());
             revertButton.setEnabled(imagePanel.canRevert());
+            zoomInButton.setEnabled(imagePanel.canZoomIn());
+            zoomOutButton.setEnabled(imagePanel.canZoomOut());
         }
     }
 
@@ -362,17 +771,63 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
         undoButton.addActionListener(this);
         revertButton.setToolTipText("Revert to original");
         revertButton.addActionListener(this);
+        zoomInButton.setToolTipText("Zoom in");
+        zoomInButton.addActionListener(this);
+        zoomOutButton.setToolTipText("Zoom out");
+        zoomOutButton.addActionListener(this);
         wwwButton.setToolTipText("Find Image Coder on the web");
         wwwButton.addActionListener(this);
+        previewButton.setToolTipText("<html>Apply code to a reduced copy of the image, and show the result.<br>"
+                + "The image is not changed until you apply the code to it.</html>");
+        previewButton.addActionListener(this);
+        previewButton.setFocusable(false);
+        cancelButton.setToolTipText("Stop applying code, and discard the partly changed image");
+        cancelButton.addActionListener(this);
+        cancelButton.setFocusable(false);
+        previousButton.setToolTipText("Open the previous of the dropped images");
+        previousButton.addActionListener(this);
+        previousButton.setFocusable(false);
+        nextButton.setToolTipText("Open the next of the dropped images");
+        nextButton.addActionListener(this);
+        nextButton.setFocusable(false);
+        applyToAllButton.setToolTipText("Apply code to all dropped images, and save them in another directory");
+        applyToAllButton.addActionListener(this);
+        applyToAllButton.setFocusable(false);
+        kernelModeBox.setToolTipText("<html>Code is the body of <tt>int pixel(int x, int y)</tt>,"
+                + " which returns the new color of one pixel.<br>"
+                + "Pixels are computed in parallel, e.g. <tt>return makeRGB(blue(x,y), green(x,y), red(x,y));</tt></html>");
+        kernelModeBox.setFocusable(false);
+        timeLimitSpinner.setToolTipText("Seconds the code may run before it is stopped, or 0 for no limit");
+        timeLimitSpinner.setMaximumSize(timeLimitSpinner.getPreferredSize());
+        timeLimitSpinner.addChangeListener(new ChangeListener() {
+
+            public void stateChanged(ChangeEvent e) {
+                timeLimit = 1000L * (Integer) timeLimitSpinner.getValue();
+            }
+        });
+        JLabel timeLimitLabel = new JLabel(" Time limit ");
+        timeLimitLabel.setLabelFor(timeLimitSpinner);
 
         JToolBar toolbar = new JToolBar();
         toolbar.add(openImageButton);
         toolbar.add(saveImageAsButton);
         toolbar.addSeparator();
+        toolbar.add(previousButton);
+        toolbar.add(nextButton);
+        toolbar.add(applyToAllButton);
+        toolbar.addSeparator();
         toolbar.add(revertButton);
         toolbar.add(undoButton);
         toolbar.addSeparator();
         toolbar.add(renderButton);
+        toolbar.add(previewButton);
+        toolbar.add(cancelButton);
+        toolbar.add(kernelModeBox);
+        toolbar.add(timeLimitLabel);
+        toolbar.add(timeLimitSpinner);
+        toolbar.addSeparator();
+        toolbar.add(zoomInButton);
+        toolbar.add(zoomOutButton);
         toolbar.addSeparator();
         toolbar.add(wwwButton);
         toolbar.setBorder(BorderFactory.createMatteBorder(0, 0, 1, 0, c));
@@ -386,15 +841,16 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
                 BorderFactory.createEmptyBorder(1, 3, 1, 3)));
 
         imageSizeLabel.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1, c));
+        ToolTipManager.sharedInstance().registerComponent(imageSizeLabel);
         mouseXYLabel.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1, c));
         mouseColorLabel.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1, c));
-        emptyLabel.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1, c));
+        renderStatsLabel.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1, c));
 
         double PREF = TableLayout.PREFERRED;
         double FILL = TableLayout.FILL;
         ComponentArranger.arrange(3, 0, new Object[]{
                     statusPanel, 100, 100, 110, FILL, 125,
-                    PREF, imageSizeLabel, mouseXYLabel, mouseColorLabel, emptyLabel, progressBar
+                    PREF, imageSizeLabel, mouseXYLabel, mouseColorLabel, renderStatsLabel, progressBar
                 });
 
         add(toolbar, BorderLayout.NORTH);
@@ -420,19 +876,25 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
                         JavaDocument d = (JavaDocument) codePane.getDocument();
                         d.redo();
                     } else if (e.getKeyCode() == KeyEvent.VK_ENTER) {
-                        new Thread() {
-
-                            @Override
-                            public void run() {
-                                createAndFilter();
-                            }
-                        }.start();
+                        scheduleRender();
                     }
                 }
             }
         });
     }
 
+    private void initRenderStats() {
+        String csv = System.getProperty("imagecoder.renderLog");
+        if (csv != null) {
+            renderStats.setCsvFile(new File(csv));
+        }
+        try {
+            renderStats.register();
+        } catch (JMException e) {
+            System.err.println("Could not register " + RenderStats.OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
     private void initImagePanelCallbacks() {
         // mouse XY postion
         imagePanel.addPropertyChangeListener(new PropertyChangeListener() {
@@ -440,8 +902,8 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
             public void propertyChange(PropertyChangeEvent evt) {
                 if ("mouseMoved".equals(evt.getPropertyName())) {
                     // XY pos
-                    MouseEvent e = (MouseEvent) evt.getOldValue();
-                    mouseXYLabel.setText(makeXYString(e.getX() + 1, e.getY() + 1));
+                    Point p = (Point) evt.getOldValue();
+                    mouseXYLabel.setText(makeXYString(p.x + 1, p.y + 1));
                     // color under mouse
                     int color = (Integer) evt.getNewValue();
                     mouseColorLabel.setText(makeColorString(color));
@@ -458,6 +920,34 @@ public class ControlsFrame extends MasterJFrame implements ActionListener {
         return new StringBuilder(17).append(w).append(" x ").append(h).toString();
     }
 
+    public static String makeImageToolTip(BufferedImage image, boolean accelerated) {
+        return new StringBuilder(64).append("<html>Pixel layout: ")
+                .append(image.getType() == BufferedImage.TYPE_INT_ARGB ? "INT_ARGB" : "INT_RGB")
+                .append("<br>Accelerated: ").append(accelerated ? "yes" : "no").append("</html>").toString();
+    }
+
+    public static String makeRenderStatsString(RenderMetrics m) {
+        return new StringBuilder(24).append(m.isCancelled() ? "cancelled after " : "rendered in ")
+                .append(RenderMetrics.millis(m.getCompileNanos() + m.getCopyNanos() + m.getFilterNanos()))
+                .append(" ms").toString();
+    }
+
+    public static String makeRenderStatsToolTip(RenderMetrics m) {
+        StringBuilder sb = new StringBuilder(200).append("<html>");
+        sb.append("Waited ").append(RenderMetrics.millis(m.getQueueWaitNanos())).append(" ms<br>");
+        sb.append("Compiled in ").append(RenderMetrics.millis(m.getCompileNanos())).append(" ms<br>");
+        sb.append("Stored undo copy in ").append(RenderMetrics.millis(m.getCopyNanos())).append(" ms<br>");
+        sb.append("Filtered in ").append(RenderMetrics.millis(m.getFilterNanos())).append(" ms<br>");
+        if (m.getPixelsRead() >= 0) {
+            sb.append("Pixels read: ").append(m.getPixelsRead()).append("<br>");
+        }
+        if (m.getPixelsWritten() >= 0) {
+            sb.append("Pixels written: ").append(m.getPixelsWritten()).append("<br>");
+        }
+        sb.append("Repaints: ").append(m.getRepaints()).append("</html>");
+        return sb.toString();
+    }
+
     public static String makeColorString(int color) {
         return new StringBuilder(17).append(color >>> 16 & 0xff).append(", ").append(color >>> 8 & 0xff).append(", ").append(color & 0xff).toString();
     }
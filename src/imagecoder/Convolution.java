@@ -0,0 +1,324 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Neighbourhood filters on arrays of packed ARGB pixels, stored row by row
+ * without padding. All four channels are filtered independently, and pixels
+ * outside the image take the value of the nearest edge pixel. The work is
+ * split in bands of rows that run on the threads of PixelKernelTask. Between
+ * rows, the bands check whether the filter that called them was cancelled or
+ * ran out of time.
+ * <p>
+ * A general kernel costs a multiplication per tap. A separable kernel is
+ * applied as a horizontal and a vertical pass, so it costs kw + kh instead of
+ * kw * kh taps per pixel. A box filter is computed from summed-area tables,
+ * so its cost does not depend on its size.
+ *
+ * @author agent
+ */
+public class Convolution {
+
+    // the minimum number of rows or columns per job
+    private static final int MIN_BAND = 16;
+    // the largest box whose sum of 8-bit values fits in 32 bits
+    public static final long MAX_BOX_AREA = 0xffffffffL / 255;
+
+    private Convolution() {
+    }
+
+    /**
+     * Convolves src with a kernel of kw by kh weights, centered on each pixel.
+     * @param src the source pixels
+     * @param dst the destination pixels; must not be src
+     * @param w the width of the image
+     * @param h the height of the image
+     * @param kernel the weights, row by row
+     * @param kw the width of the kernel, an odd number
+     * @param kh the height of the kernel, an odd number
+     */
+    public static void convolve(final int[] src, final int[] dst, final int w, final int h,
+            final float[] kernel, final int kw, final int kh) {
+        checkKernel(kernel.length == kw * kh && kw % 2 == 1 && kh % 2 == 1);
+        final int rx = kw / 2;
+        final int ry = kh / 2;
+        forEachBand(h, new Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < w; x++) {
+                        float a = 0, r = 0, g = 0, b = 0;
+                        int k = 0;
+                        for (int j = -ry; j <= ry; j++) {
+                            int row = clamp(y + j, h) * w;
+                            for (int i = -rx; i <= rx; i++) {
+                                float f = kernel[k++];
+                                int c = src[row + clamp(x + i, w)];
+                                a += f * (c >>> 24);
+                                r += f * ((c >> 16) & 0xff);
+                                g += f * ((c >> 8) & 0xff);
+                                b += f * (c & 0xff);
+                            }
+                        }
+                        dst[y * w + x] = pack(a, r, g, b);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Convolves src with the outer product of kx and ky, as a horizontal pass
+     * with kx followed by a vertical pass with ky. The intermediate result is
+     * kept as floats, so the result equals that of convolve() up to rounding:
+     * the sums are added in another order, so a channel may differ by one.
+     * @param src the source pixels
+     * @param dst the destination pixels; may be src
+     * @param w the width of the image
+     * @param h the height of the image
+     * @param kx the horizontal weights, an odd number of them
+     * @param ky the vertical weights, an odd number of them
+     */
+    public static void convolveSeparable(final int[] src, final int[] dst, final int w, final int h,
+            final float[] kx, final float[] ky) {
+        checkKernel(kx.length % 2 == 1 && ky.length % 2 == 1);
+        final int rx = kx.length / 2;
+        final int ry = ky.length / 2;
+        // four floats per pixel: a, r, g, b
+        final float[] tmp = new float[4 * w * h];
+        forEachBand(h, new Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int row = y * w;
+                    for (int x = 0; x < w; x++) {
+                        float a = 0, r = 0, g = 0, b = 0;
+                        for (int i = -rx; i <= rx; i++) {
+                            float f = kx[i + rx];
+                            int c = src[row + clamp(x + i, w)];
+                            a += f * (c >>> 24);
+                            r += f * ((c >> 16) & 0xff);
+                            g += f * ((c >> 8) & 0xff);
+                            b += f * (c & 0xff);
+                        }
+                        int t = 4 * (row + x);
+                        tmp[t] = a;
+                        tmp[t + 1] = r;
+                        tmp[t + 2] = g;
+                        tmp[t + 3] = b;
+                    }
+                }
+            }
+        });
+        forEachBand(h, new Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < w; x++) {
+                        float a = 0, r = 0, g = 0, b = 0;
+                        for (int j = -ry; j <= ry; j++) {
+                            float f = ky[j + ry];
+                            int t = 4 * (clamp(y + j, h) * w + x);
+                            a += f * tmp[t];
+                            r += f * tmp[t + 1];
+                            g += f * tmp[t + 2];
+                            b += f * tmp[t + 3];
+                        }
+                        dst[y * w + x] = pack(a, r, g, b);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces every pixel by the mean of the (2 rx + 1) by (2 ry + 1) box
+     * around it. Near the edges, only the pixels inside the image are
+     * averaged. The box sums are taken from a summed-area table per channel,
+     * so the cost per pixel is the same for every box size.
+     * @param src the source pixels
+     * @param dst the destination pixels; may be src
+     * @param w the width of the image
+     * @param h the height of the image
+     * @param rx the horizontal radius of the box
+     * @param ry the vertical radius of the box
+     */
+    public static void boxBlur(final int[] src, final int[] dst, final int w, final int h,
+            final int rx, final int ry) {
+        if (rx < 0 || ry < 0) {
+            throw new IllegalArgumentException("radius must be >= 0");
+        }
+        if ((long) Math.min(2 * rx + 1, w) * Math.min(2 * ry + 1, h) > MAX_BOX_AREA) {
+            throw new IllegalArgumentException("box is larger than " + MAX_BOX_AREA + " pixels");
+        }
+        final int[] out = dst == src ? new int[w * h] : dst;
+        final int stride = w + 1;
+        // the sums wrap around, but the difference of four of them is the
+        // exact box sum as long as that fits in 32 bits
+        final int[] sat = new int[stride * (h + 1)];
+        for (int channel = 0; channel < 32; channel += 8) {
+            final int shift = channel;
+            // prefix sums of every row
+            forEachBand(h, new Band() {
+
+                public void run(int y0, int y1) {
+                    for (int y = y0; y < y1; y++) {
+                        int s = 0;
+                        int i = (y + 1) * stride + 1;
+                        for (int x = 0; x < w; x++) {
+                            s += (src[y * w + x] >>> shift) & 0xff;
+                            sat[i++] = s;
+                        }
+                    }
+                }
+            });
+            // then of every column, a few at a time, as they are read across
+            forEachBand(w, MIN_BAND, new Band() {
+
+                public void run(int x0, int x1) {
+                    for (int y = 1; y <= h; y++) {
+                        int i = y * stride;
+                        for (int x = x0 + 1; x <= x1; x++) {
+                            sat[i + x] += sat[i - stride + x];
+                        }
+                    }
+                }
+            });
+            forEachBand(h, new Band() {
+
+                public void run(int y0, int y1) {
+                    for (int y = y0; y < y1; y++) {
+                        int top = Math.max(0, y - ry) * stride;
+                        int bottom = (Math.min(h - 1, y + ry) + 1) * stride;
+                        int rows = bottom / stride - top / stride;
+                        for (int x = 0; x < w; x++) {
+                            int left = Math.max(0, x - rx);
+                            int right = Math.min(w - 1, x + rx) + 1;
+                            long sum = (sat[bottom + right] - sat[top + right]
+                                    - sat[bottom + left] + sat[top + left]) & 0xffffffffL;
+                            long area = (long) rows * (right - left);
+                            int v = (int) ((sum + area / 2) / area);
+                            int i = y * w + x;
+                            out[i] = shift == 0 ? v : out[i] | (v << shift);
+                        }
+                    }
+                }
+            });
+        }
+        if (out != dst) {
+            System.arraycopy(out, 0, dst, 0, w * h);
+        }
+    }
+
+    /**
+     * Returns a normalized Gaussian kernel for convolveSeparable(), with a
+     * radius of three times sigma.
+     * @param sigma the standard deviation in pixels
+     * @return the weights
+     */
+    public static float[] gaussian(double sigma) {
+        int r = Math.max(1, (int) Math.ceil(3 * sigma));
+        float[] k = new float[2 * r + 1];
+        double sum = 0;
+        for (int i = -r; i <= r; i++) {
+            double v = Math.exp(-(i * i) / (2 * sigma * sigma));
+            k[i + r] = (float) v;
+            sum += v;
+        }
+        for (int i = 0; i < k.length; i++) {
+            k[i] /= sum;
+        }
+        return k;
+    }
+
+    private static void checkKernel(boolean valid) {
+        if (!valid) {
+            throw new IllegalArgumentException("kernel sizes must be odd, and match the number of weights");
+        }
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    private static int pack(float a, float r, float g, float b) {
+        return channel(a) << 24 | channel(r) << 16 | channel(g) << 8 | channel(b);
+    }
+
+    private static int channel(float v) {
+        int i = (int) (v + 0.5f);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    /**
+     * A range of rows or columns, processed by one job.
+     */
+    interface Band {
+
+        void run(int start, int end);
+    }
+
+    /**
+     * Splits 0 to size in bands, and runs them on the kernel threads, one row
+     * at a time.
+     */
+    static void forEachBand(int size, Band band) {
+        forEachBand(size, 1, band);
+    }
+
+    /**
+     * Splits 0 to size in bands, and runs them on the kernel threads. A band
+     * is run step rows or columns at a time, and in between the filter that
+     * the calling thread is running is checked for cancellation.
+     */
+    static void forEachBand(int size, final int step, final Band band) {
+        final ImageFilterTask task = ImageFilterTask.getRunningTask();
+        int jobs = Math.max(1, Math.min(4 * PixelKernelTask.getPoolSize(), size / MIN_BAND));
+        if (jobs == 1) {
+            runBand(task, band, 0, size, step);
+            return;
+        }
+        List<Callable<Object>> list = new ArrayList<Callable<Object>>(jobs);
+        for (int j = 0; j < jobs; j++) {
+            final int start = (int) ((long) size * j / jobs);
+            final int end = (int) ((long) size * (j + 1) / jobs);
+            list.add(new Callable<Object>() {
+
+                public Object call() {
+                    runBand(task, band, start, end, step);
+                    return null;
+                }
+            });
+        }
+        PixelKernelTask.runParallel(list);
+    }
+
+    private static void runBand(ImageFilterTask task, Band band, int start, int end, int step) {
+        if (task == null) {
+            // not called from a filter, so there is nothing to check
+            band.run(start, end);
+            return;
+        }
+        for (int i = start; i < end; i += step) {
+            task.checkCancelled();
+            band.run(i, Math.min(i + step, end));
+        }
+    }
+}
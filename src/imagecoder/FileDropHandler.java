@@ -17,6 +17,7 @@ package imagecoder;
 
 import java.awt.datatransfer.*;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
 import javax.swing.*;
 
@@ -75,9 +76,13 @@ public class FileDropHandler extends TransferHandler {
             if (fileList.isEmpty()) {
                 return false;
             }
+            List<File> files = new ArrayList<File>(fileList.size());
+            for (Object o : fileList) {
+                files.add((File) o);
+            }
 
-            // controls panel opens the file
-            controlsFrame.openImage((File) fileList.get(0));
+            // controls panel opens the first file, and the others in a workspace
+            controlsFrame.openImages(files);
 
         } catch (Exception e) {
             JOptionPane.showMessageDialog(controlsFrame,
@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2010 Barend Scholtus
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javassist.*;
+import javassist.bytecode.*;
+import javassist.expr.ExprEditor;
+import javassist.expr.FieldAccess;
+
+/**
+ * Compiles snippets of user code into ImageFilterTask classes. Compiled
+ * classes are cached by a hash of the snippet with comments and redundant
+ * whitespace removed, so rendering the same snippet again only creates a new
+ * instance. The least recently used classes are evicted from the cache.
+ * <p>
+ * A call to ImageFilterTask.checkCancelled() is inserted at every backward
+ * jump of the generated code, so every loop of a snippet, including an
+ * endless one, stops soon after the task is asked to stop.
+ * <p>
+ * Snippets that use the fields image or pixels of the task directly get an
+ * override of ImageFilterTask.accessesImageDirectly() that returns true, so
+ * their writes are seen by the preview and the undo history.
+ * <p>
+ * Every class is defined in its own class loader and is detached from the
+ * ClassPool once it is loaded, so classes that are evicted from the cache and
+ * no longer used by a task can be garbage collected.
+ *
+ * @author Barend Scholtus
+ * @author agent
+ */
+public class FilterCompiler {
+
+    public static final int DEFAULT_CACHE_SIZE = 32;
+    private final Map<String, Class<?>> cache;
+    private final ClassPool cp;
+    private int sequenceNumber = 0;
+    private long hits;
+    private long misses;
+
+    public FilterCompiler() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a compiler.
+     * @param cacheSize the maximum number of compiled classes to keep
+     */
+    public FilterCompiler(final int cacheSize) {
+        cache = new LinkedHashMap<String, Class<?>>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        cp = new ClassPool(true);
+        cp.appendClassPath(new ClassClassPath(ImageFilterTask.class));
+        // lets snippets use FloatPlanes and the like by their simple names
+        cp.importPackage(ImageFilterTask.class.getPackage().getName());
+    }
+
+    /**
+     * Returns a new filter task for userCode.
+     * @param userCode the snippet of code
+     * @param kernelMode true if userCode is the body of pixel(x, y) of a
+     * PixelKernelTask, false if it is the body of filter()
+     * @return a new instance of the compiled filter
+     * @throws Exception if the code cannot be compiled or instantiated
+     */
+    public synchronized ImageFilterTask compile(String userCode, boolean kernelMode) throws Exception {
+        String key = (kernelMode ? "pixel:" : "filter:") + hash(normalize(userCode));
+        Class<?> filterClass = cache.get(key);
+        if (filterClass != null) {
+            hits++;
+        } else {
+            misses++;
+            filterClass = makeClass(userCode, kernelMode);
+            cache.put(key, filterClass);
+        }
+        return (ImageFilterTask) filterClass.newInstance();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clearCache() {
+        cache.clear();
+    }
+
+    private Class<?> makeClass(String userCode, boolean kernelMode) throws Exception {
+        // get code
+        String filterCode = kernelMode ? makeKernelMethod(userCode) : makeMethod(userCode);
+
+        CtClass imageBase = cp.get(kernelMode ? "imagecoder.PixelKernelTask" : "imagecoder.ImageFilterTask");
+
+        // create new Filter class
+        String filterClassName = "Filter" + (sequenceNumber++);
+        CtClass filterCtClass = cp.makeClass(filterClassName, imageBase);
+        try {
+            CtMethod filterCtMethod = CtNewMethod.make(filterCode, filterCtClass);
+            insertCancelChecks(filterCtMethod.getMethodInfo());
+            filterCtClass.addMethod(filterCtMethod);
+            if (accessesImageDirectly(filterCtMethod)) {
+                filterCtClass.addMethod(CtNewMethod.make(
+                        "protected boolean accessesImageDirectly() { return true; }", filterCtClass));
+            }
+            byte[] bytecode = filterCtClass.toBytecode();
+            return new FilterClassLoader().define(filterClassName, bytecode);
+        } finally {
+            filterCtClass.detach();
+        }
+    }
+
+    /**
+     * Inserts this.checkCancelled() before every branch that jumps backward,
+     * which is the back-edge of every loop.
+     */
+    private void insertCancelChecks(MethodInfo method) throws BadBytecode {
+        CodeAttribute code = method.getCodeAttribute();
+        ConstPool constPool = method.getConstPool();
+        int ref = constPool.addMethodrefInfo(constPool.getThisClassInfo(), "checkCancelled", "()V");
+        byte[] check = {(byte) Opcode.ALOAD_0, (byte) Opcode.INVOKEVIRTUAL, (byte) (ref >> 8), (byte) ref};
+
+        CodeIterator it = code.iterator();
+        boolean inserted = false;
+        while (it.hasNext()) {
+            int pos = it.next();
+            int op = it.byteAt(pos);
+            int offset;
+            if ((op >= Opcode.IFEQ && op <= Opcode.GOTO) || op == Opcode.IFNULL || op == Opcode.IFNONNULL) {
+                offset = it.s16bitAt(pos + 1);
+            } else if (op == Opcode.GOTO_W) {
+                offset = it.s32bitAt(pos + 1);
+            } else {
+                continue;
+            }
+            if (offset <= 0) {
+                // jumps to pos now go to the check; the offset of the branch
+                // itself is set here, as insert() does not adjust it, and a
+                // jump to itself, as in while (true) {}, goes to the check too
+                it.insert(pos, check);
+                inserted = true;
+                if (op == Opcode.GOTO_W) {
+                    it.write32bit(offset - check.length, pos + check.length + 1);
+                } else {
+                    it.write16bit(offset - check.length, pos + check.length + 1);
+                }
+            }
+        }
+        if (inserted) {
+            code.setMaxStack(code.computeMaxStack());
+        }
+    }
+
+    /**
+     * Returns true if method uses the field image or pixels of the task,
+     * whose writes are not marked as dirty by the accessors.
+     */
+    private boolean accessesImageDirectly(CtMethod method) throws CannotCompileException {
+        final boolean[] found = new boolean[1];
+        method.instrument(new ExprEditor() {
+
+            @Override
+            public void edit(FieldAccess f) throws CannotCompileException {
+                String name = f.getFieldName();
+                if (!name.equals("image") && !name.equals("pixels")) {
+                    return;
+                }
+                try {
+                    if (f.getField().getDeclaringClass().getName().equals(ImageFilterTask.class.getName())) {
+                        found[0] = true;
+                    }
+                } catch (NotFoundException e) {
+                    throw new CannotCompileException(e);
+                }
+            }
+        });
+        return found[0];
+    }
+
+    private String makeMethod(String userCode) {
+        userCode = LoopRewriter.rewrite(userCode);
+        StringBuilder sb = new StringBuilder(30 + userCode.length());
+        return sb.append("public void filter() {").append(userCode).append('}').toString();
+    }
+
+    private String makeKernelMethod(String userCode) {
+        StringBuilder sb = new StringBuilder(40 + userCode.length());
+        return sb.append("public int pixel(int x, int y) {").append(userCode).append('}').toString();
+    }
+
+    /**
+     * Returns code without comments, and with every run of whitespace outside
+     * of string and character literals replaced by a single space.
+     * @param code Java source code
+     * @return the normalized code
+     */
+    public static String normalize(String code) {
+        StringBuilder sb = new StringBuilder(code.length());
+        int n = code.length();
+        boolean space = false;
+
+        for (int i = 0; i < n; i++) {
+            char c = code.charAt(i);
+            if (c == '/' && i + 1 < n && code.charAt(i + 1) == '/') {
+                while (i < n && code.charAt(i) != '\n') {
+                    i++;
+                }
+                space = true;
+            } else if (c == '/' && i + 1 < n && code.charAt(i + 1) == '*') {
+                int end = code.indexOf("*/", i + 2);
+                i = end < 0 ? n : end + 1;
+                space = true;
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(c);
+                if (c == '"' || c == '\'') {
+                    // copy the literal as is
+                    for (i++; i < n; i++) {
+                        char d = code.charAt(i);
+                        sb.append(d);
+                        if (d == '\\' && i + 1 < n) {
+                            sb.append(code.charAt(++i));
+                        } else if (d == c || d == '\n') {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Defines exactly one generated filter class.
+     */
+    private static class FilterClassLoader extends ClassLoader {
+
+        FilterClassLoader() {
+            super(ImageFilterTask.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length,
+                    ImageFilterTask.class.getProtectionDomain());
+        }
+    }
+
+    private static String hash(String code) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(code.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return code;
+        } catch (java.io.UnsupportedEncodingException e) {
+            return code;
+        }
+    }
+}
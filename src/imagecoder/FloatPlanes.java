@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+/**
+ * An image as four planes of floats, one per channel, for filters that take
+ * several passes. The values are not rounded or limited between passes; only
+ * pack() converts them back to 8 bits, optionally with ordered dithering.
+ * A value of 255 is full intensity, as in a packed pixel.
+ *
+ * @author agent
+ */
+public class FloatPlanes {
+
+    // thresholds of a 4 x 4 ordered dither, from 1/32 to 31/32
+    private static final float[] DITHER = new float[16];
+
+    static {
+        int[] bayer = {0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5};
+        for (int i = 0; i < 16; i++) {
+            DITHER[i] = (bayer[i] + 0.5f) / 16;
+        }
+    }
+    public final int width;
+    public final int height;
+    // the planes, row by row without padding
+    public final float[] a;
+    public final float[] r;
+    public final float[] g;
+    public final float[] b;
+
+    /**
+     * Creates planes of width by height values, all 0.
+     * @param width the width
+     * @param height the height
+     */
+    public FloatPlanes(int width, int height) {
+        this.width = width;
+        this.height = height;
+        a = new float[width * height];
+        r = new float[width * height];
+        g = new float[width * height];
+        b = new float[width * height];
+    }
+
+    /**
+     * Returns the plane of a channel.
+     * @param channel ImageFilterTask.ALPHA, RED, GREEN or BLUE
+     * @return the plane
+     */
+    public float[] get(int channel) {
+        switch (channel) {
+            case ImageFilterTask.ALPHA:
+                return a;
+            case ImageFilterTask.RED:
+                return r;
+            case ImageFilterTask.GREEN:
+                return g;
+            case ImageFilterTask.BLUE:
+                return b;
+            default:
+                throw new IllegalArgumentException("no such channel: " + channel);
+        }
+    }
+
+    /**
+     * Sets the planes to the channels of packed pixels. The rows are unpacked
+     * in parallel.
+     * @param src the pixels
+     * @param offset the index of the first pixel in src
+     * @param stride the distance between rows in src
+     * @param orMask a mask or-ed with every pixel, to make alpha opaque
+     */
+    public void unpack(final int[] src, final int offset, final int stride, final int orMask) {
+        Convolution.forEachBand(height, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int s = offset + y * stride;
+                    int i = y * width;
+                    for (int end = i + width; i < end; i++) {
+                        int c = src[s++] | orMask;
+                        a[i] = c >>> 24;
+                        r[i] = (c >> 16) & 0xff;
+                        g[i] = (c >> 8) & 0xff;
+                        b[i] = c & 0xff;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the planes to packed pixels. Each value is limited to 0 to 255
+     * and rounded, or with dither, rounded up or down according to an ordered
+     * dither pattern, so smooth gradients do not show bands. The rows are
+     * packed in parallel.
+     * @param dst the pixels
+     * @param offset the index of the first pixel in dst
+     * @param stride the distance between rows in dst
+     * @param andMask a mask and-ed with every pixel, to leave out alpha
+     * @param dither true to dither, false to round
+     */
+    public void pack(final int[] dst, final int offset, final int stride, final int andMask,
+            final boolean dither) {
+        Convolution.forEachBand(height, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int d = offset + y * stride;
+                    int i = y * width;
+                    for (int x = 0; x < width; x++, i++) {
+                        float t = dither ? DITHER[(y & 3) << 2 | (x & 3)] : 0.5f;
+                        dst[d++] = (channel(a[i], t) << 24 | channel(r[i], t) << 16
+                                | channel(g[i], t) << 8 | channel(b[i], t)) & andMask;
+                    }
+                }
+            }
+        });
+    }
+
+    private static int channel(float v, float t) {
+        int i = (int) (v + t);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+}
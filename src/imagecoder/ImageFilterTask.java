@@ -15,8 +15,21 @@
  */
 package imagecoder;
 
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import javax.swing.SwingWorker;
 
@@ -27,7 +40,51 @@ public abstract class ImageFilterTask extends SwingWorker {
 
     protected BufferedImage image;
     protected Rectangle imageBounds;
+    // direct access to the packed int pixels of image
+    protected int[] pixels;
+    protected int pixelOffset;
+    protected int scanlineStride;
+    // the row of the whole image that is the first row of image
+    protected int originY;
+    private int totalHeight;
+    // one flag per block of pixels that was written since takeDirtyRegion()
+    public static final int DIRTY_BLOCK_SHIFT = 6;
+    protected boolean[] dirtyBlocks;
+    protected int dirtyBlocksX;
+    protected int alphaMask;
+    protected int writeMask;
+    // the caller's image if image is a converted working copy of it
+    private BufferedImage target;
     private boolean warnings = false;
+    public static final int MAX_WARNING_MESSAGES = 10;
+    private final List<String> warningMessages = new ArrayList<String>();
+    private int warningCount;
+    // pixel access counters, off unless -Dimagecoder.countPixels=true; the
+    // flag is constant, so the JIT removes the counting when it is off
+    public static final boolean COUNT_PIXELS = Boolean.getBoolean("imagecoder.countPixels");
+    protected long pixelsRead;
+    protected long pixelsWritten;
+    // cancellation: a flag that generated code polls at every loop back-edge
+    private volatile boolean cancelRequested;
+    private volatile boolean timedOut;
+    // whether the last run was stopped by checkCancelled() before it finished
+    private volatile boolean stopped;
+    private long timeLimit;
+    // sets cancelRequested when the time limit is over, so checkCancelled()
+    // only reads a flag, from whichever thread calls it
+    private static final ScheduledThreadPoolExecutor DEADLINES = createDeadlineTimer();
+    private ScheduledFuture<?> deadline;
+    // the task whose filter() the current thread is running, for the
+    // operations that poll it between rows
+    private static final ThreadLocal<ImageFilterTask> RUNNING = new ThreadLocal<ImageFilterTask>();
+    // channels for getChannel() and setChannel(), as the shift of each
+    // channel in a packed pixel
+    public static final int ALPHA = 24;
+    public static final int RED = 16;
+    public static final int GREEN = 8;
+    public static final int BLUE = 0;
+    // the float working copy of image, if getPlanes() was called
+    private FloatPlanes planes;
 
     /**
      * Applies this filter to image. After setting the image and its bounds,
@@ -35,11 +92,217 @@ public abstract class ImageFilterTask extends SwingWorker {
      * @param image the image that must be filtered
      */
     public void filter(BufferedImage image) {
-        this.image = image;
-        imageBounds = new Rectangle(image.getWidth(), image.getHeight());
+        setImage(image);
         execute();
     }
 
+    /**
+     * Applies this filter to image, and runs the task with executor instead
+     * of the shared SwingWorker threads. With an executor that runs a task
+     * in the calling thread, this returns when the filter is done, and done()
+     * is called on the event dispatch thread later.
+     * @param image the image that must be filtered
+     * @param executor the executor that runs this task
+     */
+    public void filter(BufferedImage image, Executor executor) {
+        setImage(image);
+        executor.execute(this);
+    }
+
+    /**
+     * Applies this filter to image in the calling thread, and returns when the
+     * filter is done. Unlike filter(BufferedImage), this does not need an
+     * event dispatch thread, so it can be used without a user interface.
+     * @param image the image that must be filtered
+     */
+    public void filterNow(BufferedImage image) {
+        setImage(image);
+        runFilter();
+        finishImage();
+    }
+
+    /**
+     * Prepares image for filtering. Images of TYPE_INT_RGB and TYPE_INT_ARGB
+     * are accessed directly through the int array of their raster. Any other
+     * type is converted to TYPE_INT_ARGB once, and the working copy is written
+     * back to image by finishImage().
+     * @param image the image that must be filtered
+     */
+    protected void setImage(BufferedImage image) {
+        setImage(image, 0, image.getHeight());
+    }
+
+    /**
+     * Prepares a horizontal strip of a larger image for filtering. The
+     * accessors take coordinates in the whole image, and getHeight() returns
+     * the height of the whole image, but only the rows of the strip can be
+     * accessed.
+     * @param image the strip that must be filtered
+     * @param originY the row of the whole image that is the first row of image
+     * @param totalHeight the height of the whole image
+     */
+    protected void setImage(BufferedImage image, int originY, int totalHeight) {
+        clearWarnings();
+        pixelsRead = 0;
+        pixelsWritten = 0;
+        startDeadline();
+        stopped = false;
+        target = null;
+        planes = null;
+        if (!isIntPacked(image)) {
+            target = image;
+            image = convertToIntARGB(image);
+        }
+        this.image = image;
+        this.originY = originY;
+        this.totalHeight = totalHeight;
+        imageBounds = new Rectangle(0, originY, image.getWidth(), image.getHeight());
+
+        WritableRaster raster = image.getRaster();
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+        pixels = db.getData();
+        scanlineStride = sm.getScanlineStride();
+        pixelOffset = db.getOffset() + sm.getOffset(
+                -raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY())
+                - originY * scanlineStride;
+
+        dirtyBlocksX = ((image.getWidth() - 1) >> DIRTY_BLOCK_SHIFT) + 1;
+        dirtyBlocks = new boolean[dirtyBlocksX * (((image.getHeight() - 1) >> DIRTY_BLOCK_SHIFT) + 1)];
+
+        // opaque images read back with full alpha, like BufferedImage.getRGB
+        alphaMask = image.getColorModel().hasAlpha() ? 0 : 0xff000000;
+        writeMask = ~alphaMask;
+    }
+
+    /**
+     * Writes the working copy back to the image passed to setImage(), if that
+     * image had to be converted. All of that image is then reported as dirty,
+     * because only now its pixels change.
+     */
+    protected void finishImage() {
+        if (target != null) {
+            target.setRGB(0, 0, image.getWidth(), image.getHeight(),
+                    pixels, pixelOffset + originY * scanlineStride, scanlineStride);
+            target = null;
+            markDirty(0, originY, image.getWidth(), image.getHeight());
+        }
+    }
+
+    /**
+     * Marks the pixels in the given rectangle as written.
+     * @param x the x coordinate of the rectangle
+     * @param y the y coordinate of the rectangle, in the whole image
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     */
+    protected void markDirty(int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        int bx0 = x >> DIRTY_BLOCK_SHIFT;
+        int bx1 = (x + w - 1) >> DIRTY_BLOCK_SHIFT;
+        int by0 = (y - originY) >> DIRTY_BLOCK_SHIFT;
+        int by1 = (y - originY + h - 1) >> DIRTY_BLOCK_SHIFT;
+        for (int by = by0; by <= by1; by++) {
+            for (int bx = bx0; bx <= bx1; bx++) {
+                dirtyBlocks[by * dirtyBlocksX + bx] = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the bounds of the pixels that were written since the previous
+     * call, rounded up to whole blocks, or null if no pixels were written.
+     * This may be called from another thread while the filter is running, to
+     * update only the changed part of a preview; writes that are in progress
+     * are reported by a later call.
+     * @return the bounds of the written pixels in image coordinates, or null
+     */
+    public Rectangle takeDirtyRegion() {
+        boolean[] blocks = dirtyBlocks;
+        if (blocks == null) {
+            return null;
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = -1, maxY = -1;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i]) {
+                blocks[i] = false;
+                int bx = i % dirtyBlocksX;
+                int by = i / dirtyBlocksX;
+                minX = Math.min(minX, bx);
+                maxX = Math.max(maxX, bx);
+                minY = Math.min(minY, by);
+                maxY = Math.max(maxY, by);
+            }
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        int size = 1 << DIRTY_BLOCK_SHIFT;
+        Rectangle r = new Rectangle(minX * size, originY + minY * size,
+                (maxX - minX + 1) * size, (maxY - minY + 1) * size);
+        return r.intersection(imageBounds);
+    }
+
+    /**
+     * Returns true if image stores one pixel per int in the default RGB
+     * layout, so it can be accessed through its int array.
+     * @param image the image to test
+     * @return true if image is of TYPE_INT_RGB or TYPE_INT_ARGB
+     */
+    public static boolean isIntPacked(BufferedImage image) {
+        int type = image.getType();
+        return type == BufferedImage.TYPE_INT_RGB
+                || type == BufferedImage.TYPE_INT_ARGB;
+    }
+
+    /**
+     * Returns image if it is of TYPE_INT_RGB or TYPE_INT_ARGB, and otherwise a
+     * copy of it as returned by copyIntPacked().
+     * @param image the image
+     * @return image, or a copy of it with one pixel per int
+     */
+    public static BufferedImage toIntPacked(BufferedImage image) {
+        return isIntPacked(image) ? image : copyIntPacked(image);
+    }
+
+    /**
+     * Returns a copy of image of TYPE_INT_ARGB, or TYPE_INT_RGB if image has
+     * no alpha. The pixels are copied without calling getData() on the
+     * copy, so Java2D can still cache it in video memory.
+     * @param image the image to copy
+     * @return the copy
+     */
+    public static BufferedImage copyIntPacked(BufferedImage image) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        if (image.getType() == type) {
+            copy.getRaster().setDataElements(0, 0, image.getRaster());
+        } else {
+            Graphics2D g2d = copy.createGraphics();
+            g2d.setComposite(AlphaComposite.Src);
+            g2d.drawImage(image, 0, 0, null);
+            g2d.dispose();
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a copy of image of TYPE_INT_ARGB.
+     * @param image the image to copy
+     * @return the copy
+     */
+    public static BufferedImage convertToIntARGB(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = copy.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return copy;
+    }
+
     /**
      * Does the filtering in the background. This method is called by
      * filter(BufferedImage).
@@ -49,17 +312,60 @@ public abstract class ImageFilterTask extends SwingWorker {
     @Override
     protected Object doInBackground() throws Exception {
         setProgress(0);
-        filter();
+        runFilter();
+        finishImage();
         return null;
     }
 
     /**
-     * Notifies listeners that the filtering is done. Called automatically at
-     * the end of the task.
+     * Calls filter(), and records whether it was stopped by checkCancelled().
+     * If the filter accesses image or pixels directly, all of the image is
+     * marked as written, as those writes are not tracked.
+     */
+    protected final void runFilter() {
+        ImageFilterTask outer = RUNNING.get();
+        RUNNING.set(this);
+        try {
+            filter();
+        } catch (CancellationException e) {
+            stopped = true;
+            throw e;
+        } finally {
+            RUNNING.set(outer);
+            stopDeadline();
+            if (accessesImageDirectly()) {
+                markDirty(0, originY, image.getWidth(), image.getHeight());
+            }
+        }
+    }
+
+    /**
+     * Returns the task whose filter the calling thread is running, or null.
+     * Operations that run in bands poll it with checkCancelled().
+     * @return the running task, or null
+     */
+    static ImageFilterTask getRunningTask() {
+        return RUNNING.get();
+    }
+
+    /**
+     * Returns true if filter() reads or writes the fields image or pixels
+     * itself, instead of through the accessors. FilterCompiler overrides this
+     * in the classes of snippets that do.
+     * @return true if the filter may write pixels without marking them
+     */
+    protected boolean accessesImageDirectly() {
+        return false;
+    }
+
+    /**
+     * Notifies listeners that the filtering is done, and shows the warnings
+     * that were collected. Called automatically at the end of the task.
      */
     @Override
     public void done() {
         setProgress(100);
+        showWarnings();
     }
 
     /**
@@ -77,6 +383,102 @@ public abstract class ImageFilterTask extends SwingWorker {
         return val;
     }
 
+    /**
+     * Asks the filter to stop. The filter stops at the next check in a loop
+     * of the generated code, by throwing a CancellationException from
+     * checkCancelled(). Unlike SwingWorker.cancel(), this does not rely on
+     * the filter checking whether its thread is interrupted.
+     */
+    public void requestCancel() {
+        cancelRequested = true;
+    }
+
+    /**
+     * Returns true if requestCancel() was called, or the time limit was
+     * exceeded.
+     * @return true if the filter was asked to stop
+     */
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /**
+     * Returns true if the last run was stopped by checkCancelled(), because
+     * requestCancel() was called or the time limit was exceeded, before the
+     * filter finished. Unlike isCancelRequested(), this is false if the
+     * filter had already finished when requestCancel() was called.
+     * @return true if the filter did not finish
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public long getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * Sets the time a run of the filter may take, counted from the moment
+     * the image is set. A filter that takes longer is cancelled.
+     * @param millis the time limit in milliseconds, or 0 for no limit
+     */
+    public void setTimeLimit(long millis) {
+        timeLimit = millis;
+    }
+
+    /**
+     * Throws a CancellationException if the filter was asked to stop, or its
+     * time limit is over. The compiler inserts a call to this method at every
+     * loop back-edge of the generated filter code, and the built-in
+     * operations call it between rows. It only reads a flag, which a timer
+     * sets when the time limit is over, so it is cheap in inner loops and
+     * may be called from any thread.
+     */
+    public final void checkCancelled() {
+        if (cancelRequested) {
+            throw new CancellationException(timedOut
+                    ? "Filter took longer than " + timeLimit + " ms" : "Filter cancelled");
+        }
+    }
+
+    private synchronized void startDeadline() {
+        stopDeadline();
+        if (timeLimit > 0) {
+            deadline = DEADLINES.schedule(new Runnable() {
+
+                public void run() {
+                    timedOut = true;
+                    cancelRequested = true;
+                }
+            }, timeLimit, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void stopDeadline() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createDeadlineTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ImageCoder-deadline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // a filter that finishes in time removes its deadline from the queue
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
     public boolean isWarnings() {
         return warnings;
     }
@@ -85,11 +487,63 @@ public abstract class ImageFilterTask extends SwingWorker {
         this.warnings = warnings;
     }
 
-    private void showWarningMessage(String str) {
+    /**
+     * Returns the number of warnings of the last run. Warnings are only
+     * collected if isWarnings() is true.
+     * @return the number of warnings
+     */
+    public int getWarningCount() {
+        synchronized (warningMessages) {
+            return warningCount;
+        }
+    }
+
+    /**
+     * Returns the first MAX_WARNING_MESSAGES warnings of the last run.
+     * @return the warning messages
+     */
+    public List<String> getWarningMessages() {
+        synchronized (warningMessages) {
+            return new ArrayList<String>(warningMessages);
+        }
+    }
+
+    private void clearWarnings() {
+        synchronized (warningMessages) {
+            warningMessages.clear();
+            warningCount = 0;
+        }
+    }
+
+    private void addWarning(String str) {
         if (warnings) {
-            JOptionPane.showMessageDialog(null, "Warning", str,
-                    JOptionPane.WARNING_MESSAGE);
+            synchronized (warningMessages) {
+                if (warningMessages.size() < MAX_WARNING_MESSAGES) {
+                    warningMessages.add(str);
+                }
+                warningCount++;
+            }
+        }
+    }
+
+    /**
+     * Shows the warnings of the last run in one dialog. This is called by
+     * done(), so the filter itself is never blocked by a dialog.
+     */
+    private void showWarnings() {
+        int count = getWarningCount();
+        if (count == 0) {
+            return;
         }
+        StringBuilder sb = new StringBuilder();
+        for (String message : getWarningMessages()) {
+            sb.append(message).append('\n');
+        }
+        if (count > MAX_WARNING_MESSAGES) {
+            sb.append("... and ").append(count - MAX_WARNING_MESSAGES).append(" more warnings");
+        }
+        JOptionPane.showMessageDialog(null, sb.toString(), "Warning",
+                JOptionPane.WARNING_MESSAGE);
     }
 
     /* Helper methods to make filter() easier to write. */
@@ -111,7 +565,7 @@ public abstract class ImageFilterTask extends SwingWorker {
     }
 
     public int getHeight() {
-        return image.getHeight();
+        return totalHeight;
     }
 
     public int height() {
@@ -120,9 +574,11 @@ public abstract class ImageFilterTask extends SwingWorker {
 
     public void setRGB(int x, int y, int rgb) {
         if (imageBounds.contains(x, y)) {
-            image.setRGB(x, y, rgb);
+            countWrite();
+            pixels[pixelOffset + y * scanlineStride + x] = rgb & writeMask;
+            dirtyBlocks[((y - originY) >> DIRTY_BLOCK_SHIFT) * dirtyBlocksX + (x >> DIRTY_BLOCK_SHIFT)] = true;
         } else {
-            showWarningMessage("Coordinate [" + x + "," + y + "] is out of the image's bounds");
+            addWarning("Coordinate [" + x + "," + y + "] is out of the image's bounds");
         }
     }
 
@@ -132,9 +588,10 @@ public abstract class ImageFilterTask extends SwingWorker {
 
     public int getRGB(int x, int y) {
         if (imageBounds.contains(x, y)) {
-            return image.getRGB(x, y);
+            countRead();
+            return pixels[pixelOffset + y * scanlineStride + x] | alphaMask;
         } else {
-            showWarningMessage("Coordinate [" + x + "," + y + "] is out of the image's bounds");
+            addWarning("Coordinate [" + x + "," + y + "] is out of the image's bounds");
             return 0;
         }
     }
@@ -145,36 +602,40 @@ public abstract class ImageFilterTask extends SwingWorker {
 
     public int getA(int x, int y) {
         if (imageBounds.contains(x, y)) {
-            return (image.getRGB(x, y) >> 24) & 0xff;
+            countRead();
+            return (pixels[pixelOffset + y * scanlineStride + x] | alphaMask) >>> 24;
         } else {
-            showWarningMessage("Coordinate [" + x + "," + y + "] is out of the image's bounds");
+            addWarning("Coordinate [" + x + "," + y + "] is out of the image's bounds");
             return 0;
         }
     }
 
     public int getR(int x, int y) {
         if (imageBounds.contains(x, y)) {
-            return (image.getRGB(x, y) >> 16) & 0xff;
+            countRead();
+            return (pixels[pixelOffset + y * scanlineStride + x] >> 16) & 0xff;
         } else {
-            showWarningMessage("Coordinate [" + x + "," + y + "] is out of the image's bounds");
+            addWarning("Coordinate [" + x + "," + y + "] is out of the image's bounds");
             return 0;
         }
     }
 
     public int getG(int x, int y) {
         if (imageBounds.contains(x, y)) {
-            return (image.getRGB(x, y) >> 8) & 0xff;
+            countRead();
+            return (pixels[pixelOffset + y * scanlineStride + x] >> 8) & 0xff;
         } else {
-            showWarningMessage("Coordinate [" + x + "," + y + "] is out of the image's bounds");
+            addWarning("Coordinate [" + x + "," + y + "] is out of the image's bounds");
             return 0;
         }
     }
 
     public int getB(int x, int y) {
         if (imageBounds.contains(x, y)) {
-            return image.getRGB(x, y) & 0xff;
+            countRead();
+            return pixels[pixelOffset + y * scanlineStride + x] & 0xff;
         } else {
-            showWarningMessage("Coordinate [" + x + "," + y + "] is out of the image's bounds");
+            addWarning("Coordinate [" + x + "," + y + "] is out of the image's bounds");
             return 0;
         }
     }
@@ -195,21 +656,415 @@ public abstract class ImageFilterTask extends SwingWorker {
         return getB(x, y);
     }
 
+    private void countRead() {
+        if (COUNT_PIXELS) {
+            countReads(1);
+        }
+    }
+
+    private void countWrite() {
+        if (COUNT_PIXELS) {
+            countWrites(1);
+        }
+    }
+
+    /**
+     * Adds n to the pixels read. Only called if COUNT_PIXELS is true.
+     * @param n the number of pixels read
+     */
+    protected void countReads(long n) {
+        pixelsRead += n;
+    }
+
+    /**
+     * Adds n to the pixels written. Only called if COUNT_PIXELS is true.
+     * @param n the number of pixels written
+     */
+    protected void countWrites(long n) {
+        pixelsWritten += n;
+    }
+
+    /**
+     * Returns the number of pixels the last run read through the accessors.
+     * Pixels are only counted if COUNT_PIXELS is true.
+     * @return the number of pixels read, or -1 if they were not counted
+     */
+    public long getPixelsRead() {
+        return COUNT_PIXELS ? pixelsRead : -1;
+    }
+
+    /**
+     * Returns the number of pixels the last run wrote.
+     * @return the number of pixels written, or -1 if they were not counted
+     */
+    public long getPixelsWritten() {
+        return COUNT_PIXELS ? pixelsWritten : -1;
+    }
+
+    /* Accessors without bounds checks. The snippet compiler uses these where
+     * it can prove that x and y are inside the image; see LoopRewriter. */
+    public final int getRGBUnchecked(int x, int y) {
+        countRead();
+        return pixels[pixelOffset + y * scanlineStride + x] | alphaMask;
+    }
+
+    public final void setRGBUnchecked(int x, int y, int rgb) {
+        countWrite();
+        pixels[pixelOffset + y * scanlineStride + x] = rgb & writeMask;
+        dirtyBlocks[((y - originY) >> DIRTY_BLOCK_SHIFT) * dirtyBlocksX + (x >> DIRTY_BLOCK_SHIFT)] = true;
+    }
+
+    public final int getAUnchecked(int x, int y) {
+        countRead();
+        return (pixels[pixelOffset + y * scanlineStride + x] | alphaMask) >>> 24;
+    }
+
+    public final int getRUnchecked(int x, int y) {
+        countRead();
+        return (pixels[pixelOffset + y * scanlineStride + x] >> 16) & 0xff;
+    }
+
+    public final int getGUnchecked(int x, int y) {
+        countRead();
+        return (pixels[pixelOffset + y * scanlineStride + x] >> 8) & 0xff;
+    }
+
+    public final int getBUnchecked(int x, int y) {
+        countRead();
+        return pixels[pixelOffset + y * scanlineStride + x] & 0xff;
+    }
+
+    /* Bulk accessors. These copy whole rows or regions at once, into or from
+     * arrays the caller may reuse, so a loop over rows needs no call per
+     * pixel and allocates nothing. */
+    public int[] getRow(int y, int[] row) {
+        return getRegion(0, y, image.getWidth(), 1, row);
+    }
+
+    public void setRow(int y, int[] row) {
+        setRegion(0, y, image.getWidth(), 1, row);
+    }
+
+    /**
+     * Copies the pixels of a rectangle into data, row by row without padding.
+     * @param x the x coordinate of the rectangle
+     * @param y the y coordinate of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param data the array to fill, or null or too small to allocate a new one
+     * @return the filled array
+     */
+    public int[] getRegion(int x, int y, int w, int h, int[] data) {
+        if (data == null || data.length < w * h) {
+            data = new int[w * h];
+        }
+        if (!checkRegion(x, y, w, h)) {
+            return data;
+        }
+        int src = pixelOffset + y * scanlineStride + x;
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(pixels, src + row * scanlineStride, data, row * w, w);
+        }
+        if (alphaMask != 0) {
+            for (int i = 0; i < w * h; i++) {
+                data[i] |= alphaMask;
+            }
+        }
+        if (COUNT_PIXELS) {
+            countReads((long) w * h);
+        }
+        return data;
+    }
+
+    /**
+     * Replaces the pixels of a rectangle by data, which is laid out as
+     * returned by getRegion().
+     * @param x the x coordinate of the rectangle
+     * @param y the y coordinate of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param data the new pixels
+     */
+    public void setRegion(int x, int y, int w, int h, int[] data) {
+        if (!checkRegion(x, y, w, h)) {
+            return;
+        }
+        int dst = pixelOffset + y * scanlineStride + x;
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(data, row * w, pixels, dst + row * scanlineStride, w);
+        }
+        if (writeMask != -1) {
+            for (int row = 0; row < h; row++) {
+                int i = dst + row * scanlineStride;
+                for (int end = i + w; i < end; i++) {
+                    pixels[i] &= writeMask;
+                }
+            }
+        }
+        if (COUNT_PIXELS) {
+            countWrites((long) w * h);
+        }
+        markDirty(x, y, w, h);
+    }
+
+    /**
+     * Copies one channel of all accessible pixels into data, row by row
+     * without padding. The values are unsigned: use data[i] &amp; 0xff.
+     * @param channel ALPHA, RED, GREEN or BLUE
+     * @param data the array to fill, or null or too small to allocate a new one
+     * @return the filled array
+     */
+    public byte[] getChannel(int channel, byte[] data) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (data == null || data.length < w * h) {
+            data = new byte[w * h];
+        }
+        int i = 0;
+        for (int y = 0; y < h; y++) {
+            int src = pixelOffset + (originY + y) * scanlineStride;
+            for (int end = src + w; src < end; src++) {
+                data[i++] = (byte) ((pixels[src] | alphaMask) >>> channel);
+            }
+        }
+        if (COUNT_PIXELS) {
+            countReads((long) w * h);
+        }
+        return data;
+    }
+
+    /**
+     * Copies one channel of all accessible pixels into data, as values from
+     * 0 to 255.
+     * @param channel ALPHA, RED, GREEN or BLUE
+     * @param data the array to fill, or null or too small to allocate a new one
+     * @return the filled array
+     */
+    public float[] getChannel(int channel, float[] data) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (data == null || data.length < w * h) {
+            data = new float[w * h];
+        }
+        int i = 0;
+        for (int y = 0; y < h; y++) {
+            int src = pixelOffset + (originY + y) * scanlineStride;
+            for (int end = src + w; src < end; src++) {
+                data[i++] = ((pixels[src] | alphaMask) >>> channel) & 0xff;
+            }
+        }
+        if (COUNT_PIXELS) {
+            countReads((long) w * h);
+        }
+        return data;
+    }
+
+    /**
+     * Replaces one channel of all accessible pixels by data, which is laid out
+     * as returned by getChannel().
+     * @param channel ALPHA, RED, GREEN or BLUE
+     * @param data the new values
+     */
+    public void setChannel(int channel, byte[] data) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int keep = ~(0xff << channel) & writeMask;
+        int i = 0;
+        for (int y = 0; y < h; y++) {
+            int dst = pixelOffset + (originY + y) * scanlineStride;
+            for (int end = dst + w; dst < end; dst++) {
+                pixels[dst] = (pixels[dst] & keep) | (((data[i++] & 0xff) << channel) & writeMask);
+            }
+        }
+        if (COUNT_PIXELS) {
+            countWrites((long) w * h);
+        }
+        markDirty(0, originY, w, h);
+    }
+
+    /**
+     * Replaces one channel of all accessible pixels by data. The values are
+     * rounded, and limited to 0 to 255.
+     * @param channel ALPHA, RED, GREEN or BLUE
+     * @param data the new values
+     */
+    public void setChannel(int channel, float[] data) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int keep = ~(0xff << channel) & writeMask;
+        int i = 0;
+        for (int y = 0; y < h; y++) {
+            int dst = pixelOffset + (originY + y) * scanlineStride;
+            for (int end = dst + w; dst < end; dst++) {
+                int v = (int) (data[i++] + 0.5f);
+                v = v < 0 ? 0 : (v > 255 ? 255 : v);
+                pixels[dst] = (pixels[dst] & keep) | ((v << channel) & writeMask);
+            }
+        }
+        if (COUNT_PIXELS) {
+            countWrites((long) w * h);
+        }
+        markDirty(0, originY, w, h);
+    }
+
+    /**
+     * Returns the accessible pixels as planes of floats. They are unpacked
+     * on the first call only; later calls return the same planes, so several
+     * passes can work on them without rounding in between. Changes to the
+     * planes show in the image only after storePlanes().
+     * @return the planes
+     */
+    public FloatPlanes getPlanes() {
+        if (planes == null) {
+            planes = new FloatPlanes(image.getWidth(), image.getHeight());
+            planes.unpack(pixels, pixelOffset + originY * scanlineStride, scanlineStride, alphaMask);
+            if (COUNT_PIXELS) {
+                countReads((long) image.getWidth() * image.getHeight());
+            }
+        }
+        return planes;
+    }
+
+    /**
+     * Writes the planes returned by getPlanes() back to the image.
+     * @param dither true to dither the values to 8 bits, false to round them
+     */
+    public void storePlanes(boolean dither) {
+        if (planes == null) {
+            addWarning("storePlanes() was called before getPlanes()");
+            return;
+        }
+        planes.pack(pixels, pixelOffset + originY * scanlineStride, scanlineStride, writeMask, dither);
+        if (COUNT_PIXELS) {
+            countWrites((long) image.getWidth() * image.getHeight());
+        }
+        markDirty(0, originY, image.getWidth(), image.getHeight());
+    }
+
+    public void storePlanes() {
+        storePlanes(false);
+    }
+
+    private boolean checkRegion(int x, int y, int w, int h) {
+        if (w >= 0 && h >= 0 && imageBounds.contains(new Rectangle(x, y, w, h))) {
+            return true;
+        }
+        addWarning("Region [" + x + "," + y + "," + w + "," + h + "] is out of the image's bounds");
+        return false;
+    }
+
+    /* Neighbourhood filters on the whole image; see Convolution. */
+    public void convolve(float[] kernel, int kernelWidth, int kernelHeight) {
+        int[] src = copyPixels();
+        int[] dst = new int[src.length];
+        Convolution.convolve(src, dst, image.getWidth(), image.getHeight(), kernel, kernelWidth, kernelHeight);
+        storePixels(dst);
+    }
+
+    public void convolveSeparable(float[] kernelX, float[] kernelY) {
+        int[] data = copyPixels();
+        Convolution.convolveSeparable(data, data, image.getWidth(), image.getHeight(), kernelX, kernelY);
+        storePixels(data);
+    }
+
+    public void boxBlur(int radiusX, int radiusY) {
+        int[] data = copyPixels();
+        Convolution.boxBlur(data, data, image.getWidth(), image.getHeight(), radiusX, radiusY);
+        storePixels(data);
+    }
+
+    public void boxBlur(int radius) {
+        boxBlur(radius, radius);
+    }
+
+    public void gaussianBlur(double sigma) {
+        float[] k = Convolution.gaussian(sigma);
+        convolveSeparable(k, k);
+    }
+
+    public float[] gaussianKernel(double sigma) {
+        return Convolution.gaussian(sigma);
+    }
+
+    /* Point operations on the whole image; see PointOps. */
+    public void greyscale() {
+        PointOps.greyscale(pixels, pixelOffset + originY * scanlineStride, scanlineStride,
+                image.getWidth(), image.getHeight());
+        pointOpDone();
+    }
+
+    public void luminance() {
+        PointOps.luminance(pixels, pixelOffset + originY * scanlineStride, scanlineStride,
+                image.getWidth(), image.getHeight());
+        pointOpDone();
+    }
+
+    public void brightnessContrast(int brightness, double contrast) {
+        PointOps.brightnessContrast(pixels, pixelOffset + originY * scanlineStride, scanlineStride,
+                image.getWidth(), image.getHeight(), brightness, contrast);
+        pointOpDone();
+    }
+
+    public void invert() {
+        PointOps.invert(pixels, pixelOffset + originY * scanlineStride, scanlineStride,
+                image.getWidth(), image.getHeight());
+        pointOpDone();
+    }
+
+    public void swapRedBlue() {
+        PointOps.swapRedBlue(pixels, pixelOffset + originY * scanlineStride, scanlineStride,
+                image.getWidth(), image.getHeight());
+        pointOpDone();
+    }
+
+    public void blend(int[] src, double opacity) {
+        if (src.length < image.getWidth() * image.getHeight()) {
+            addWarning("blend() needs " + image.getWidth() * image.getHeight() + " pixels, not " + src.length);
+            return;
+        }
+        PointOps.blend(pixels, pixelOffset + originY * scanlineStride, scanlineStride,
+                image.getWidth(), image.getHeight(), src, opacity);
+        pointOpDone();
+    }
+
+    private void pointOpDone() {
+        if (COUNT_PIXELS) {
+            countReads((long) image.getWidth() * image.getHeight());
+            countWrites((long) image.getWidth() * image.getHeight());
+        }
+        markDirty(0, originY, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Returns all accessible pixels, row by row without padding.
+     */
+    private int[] copyPixels() {
+        return getRegion(0, originY, image.getWidth(), image.getHeight(), null);
+    }
+
+    /**
+     * Replaces all accessible pixels by data, which is laid out as returned
+     * by copyPixels().
+     */
+    private void storePixels(int[] data) {
+        setRegion(0, originY, image.getWidth(), image.getHeight(), data);
+    }
+
     public int makeARGB(int a, int r, int g, int b) {
         return (a << 24) | (r << 16) | (g << 8) | b;
     }
 
     public int makeRGB(int r, int g, int b) {
         if (r < 0 || r > 0xff) {
-            showWarningMessage("Color value " + r + " for red is not in the range [0,255]");
+            addWarning("Color value " + r + " for red is not in the range [0,255]");
             r = limit(r, 0, 0xff);
         }
         if (g < 0 || g > 0xff) {
-            showWarningMessage("Color value " + g + " for green is not in the range [0,255]");
+            addWarning("Color value " + g + " for green is not in the range [0,255]");
             g = limit(g, 0, 0xff);
         }
         if (b < 0 || b > 0xff) {
-            showWarningMessage("Color value " + b + " for blue is not in the range [0,255]");
+            addWarning("Color value " + b + " for blue is not in the range [0,255]");
             b = limit(b, 0, 0xff);
         }
         return (0xff << 24) | (r << 16) | (g << 8) | b;
@@ -245,7 +1100,7 @@ public abstract class ImageFilterTask extends SwingWorker {
 
 //    public int makeRGB(int c) {
 //        if (c < 0 || c > 0xff) {
-//            showWarningMessage("Color value " + c + " is not in the range [0,255]");
+//            addWarning("Color value " + c + " is not in the range [0,255]");
 //        }
 //        c = limit(c, 0, 0xff);
 //        return (0xff << 24) | (c << 16) | (c << 8) | c;
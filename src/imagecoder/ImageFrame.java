@@ -46,6 +46,19 @@ public class ImageFrame extends JFrame {
 
     void setImage(BufferedImage image) {
         imageLabel.setImage(image);
+        fitToImage();
+    }
+
+    void setLoadingPreview(BufferedImage preview, int width, int height) {
+        imageLabel.setLoadingPreview(preview, width, height);
+        fitToImage();
+    }
+
+    /**
+     * Resizes the frame to the preferred size of the image, up to MAX_WIDTH
+     * by MAX_HEIGHT.
+     */
+    private void fitToImage() {
         imageScrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
         imageScrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER);
         pack();
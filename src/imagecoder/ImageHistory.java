@@ -0,0 +1,470 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.*;
+
+/**
+ * Stores previous versions of an image within a memory budget.
+ * <p>
+ * The newest version is copy-on-write: begin() starts it without copying
+ * anything, and save() copies the tiles of a region just before a filter
+ * overwrites them, so a filter that changes a small part of the image only
+ * stores that part. As soon as a newer version is started, the saved tiles
+ * are replaced by a delta against the image: every tile is XOR-ed with the
+ * same tile of the image and deflated, and tiles that were not saved, or did
+ * not change, take no space at all. When the deltas in memory exceed the
+ * budget, the oldest ones are spilled to a temporary file, and they are read
+ * back when they are needed again.
+ * <p>
+ * Because each version is stored relative to its successor, versions are
+ * restored by applying the deltas to the current image from newest to oldest.
+ *
+ * @author agent
+ */
+public class ImageHistory {
+
+    public static final int TILE_SIZE = 128;
+    public static final long DEFAULT_BUDGET = 128L * 1024 * 1024;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final long budget;
+    private ArrayList<Version> versions = new ArrayList<Version>();
+    private long heapBytes;
+    // spilled deltas, stored oldest first
+    private File spillFile;
+    private RandomAccessFile spillAccess;
+    private long spillEnd;
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+
+    public ImageHistory(int width, int height) {
+        this(width, height, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Creates a history for images of the given size.
+     * @param width the width of the images
+     * @param height the height of the images
+     * @param budget the number of bytes the history may use on the heap
+     */
+    public ImageHistory(int width, int height, long budget) {
+        this.width = width;
+        this.height = height;
+        this.budget = budget;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public int size() {
+        return versions.size();
+    }
+
+    public boolean isEmpty() {
+        return versions.isEmpty();
+    }
+
+    /**
+     * Returns the number of bytes this history currently uses on the heap.
+     * @return the number of bytes
+     */
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * Returns the number of bytes this history has spilled to disk.
+     * @return the number of bytes
+     */
+    public long getSpilledBytes() {
+        return spillEnd;
+    }
+
+    /**
+     * Starts a new version, which holds nothing until save() is called. The
+     * previous newest version is compressed against image first.
+     * @param image the current image, which must have the size of this history
+     * @throws IOException if older versions could not be spilled to disk
+     */
+    public void begin(BufferedImage image) throws IOException {
+        checkSize(image);
+
+        if (!versions.isEmpty()) {
+            Version top = versions.get(versions.size() - 1);
+            if (top.tiles != null) {
+                heapBytes -= top.size;
+                compress(top, image.getRaster());
+                heapBytes += top.size;
+            }
+        }
+
+        Version version = new Version();
+        version.tiles = new Object[tilesX * tilesY];
+        versions.add(version);
+
+        spillOverBudget();
+    }
+
+    /**
+     * Copies the tiles of image that overlap r into the newest version,
+     * unless they were saved since begin(). This must be called before
+     * those pixels of image are changed.
+     * @param image the current image
+     * @param r the region that is about to be changed
+     */
+    public void save(BufferedImage image, Rectangle r) {
+        checkSize(image);
+        Version top = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        if (top == null || top.tiles == null) {
+            return;
+        }
+        r = r.intersection(new Rectangle(width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        Raster raster = image.getRaster();
+        int tx1 = (r.x + r.width - 1) / TILE_SIZE;
+        int ty1 = (r.y + r.height - 1) / TILE_SIZE;
+        for (int ty = r.y / TILE_SIZE; ty <= ty1; ty++) {
+            for (int tx = r.x / TILE_SIZE; tx <= tx1; tx++) {
+                int i = ty * tilesX + tx;
+                if (top.tiles[i] == null) {
+                    top.tiles[i] = getTile(raster, tx, ty);
+                    int bytes = dataBytes(top.tiles[i]);
+                    top.size += bytes;
+                    heapBytes += bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the newest version and writes it into image.
+     * @param image the image to restore the version into, which must hold the
+     * successor of the newest version
+     * @return the bounds of the tiles that were restored, or null if none
+     * @throws IOException if the version could not be read back from disk
+     */
+    public Rectangle pop(BufferedImage image) throws IOException {
+        checkSize(image);
+        Version top = versions.remove(versions.size() - 1);
+        WritableRaster raster = image.getRaster();
+        Rectangle restored;
+
+        if (top.tiles != null) {
+            restored = null;
+            for (int ty = 0, i = 0; ty < tilesY; ty++) {
+                for (int tx = 0; tx < tilesX; tx++, i++) {
+                    if (top.tiles[i] != null) {
+                        setTile(raster, tx, ty, top.tiles[i]);
+                        restored = union(restored, tx, ty);
+                    }
+                }
+            }
+        } else {
+            restored = applyDelta(top, raster);
+        }
+
+        if (top.fileOffset >= 0) {
+            // the newest spilled version is at the end of the file
+            spillEnd = top.fileOffset;
+            spillAccess.setLength(spillEnd);
+        } else {
+            heapBytes -= top.size;
+        }
+        return restored;
+    }
+
+    /**
+     * Removes all versions but the oldest, and writes the oldest into image.
+     * @param image the image to restore the version into, which must hold the
+     * successor of the newest version
+     * @return the bounds of the tiles that were restored, or null if none
+     * @throws IOException if a version could not be read back from disk
+     */
+    public Rectangle revert(BufferedImage image) throws IOException {
+        Rectangle restored = null;
+        while (!versions.isEmpty()) {
+            Rectangle r = pop(image);
+            if (r != null) {
+                restored = restored == null ? r : restored.union(r);
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Removes all versions, and deletes the temporary file if there is one.
+     */
+    public void clear() {
+        versions.clear();
+        heapBytes = 0;
+        spillEnd = 0;
+        if (spillAccess != null) {
+            try {
+                spillAccess.close();
+            } catch (IOException e) {
+                // nothing to do, the file is deleted on exit
+            }
+            spillFile.delete();
+            spillAccess = null;
+        }
+    }
+
+    /**
+     * Clears this history and deletes its temporary file.
+     */
+    public void dispose() {
+        clear();
+        deflater.end();
+        inflater.end();
+    }
+
+    private void compress(Version version, Raster successor) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[64 * 1024];
+        version.deltaLengths = new int[version.tiles.length];
+
+        for (int ty = 0, i = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++, i++) {
+                if (version.tiles[i] == null) {
+                    continue;
+                }
+                byte[] delta = xorBytes(version.tiles[i], getTile(successor, tx, ty));
+                if (delta == null) {
+                    continue;
+                }
+                int start = bos.size();
+                deflater.reset();
+                deflater.setInput(delta);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    bos.write(buf, 0, n);
+                }
+                version.deltaLengths[i] = bos.size() - start;
+            }
+        }
+
+        version.tiles = null;
+        version.delta = bos.toByteArray();
+        version.size = version.delta.length;
+    }
+
+    private Rectangle applyDelta(Version version, WritableRaster raster) throws IOException {
+        byte[] data = version.delta != null ? version.delta : readSpilled(version);
+        int pos = 0;
+        Rectangle restored = null;
+
+        for (int ty = 0, i = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++, i++) {
+                int len = version.deltaLengths[i];
+                if (len == 0) {
+                    continue;
+                }
+                Object tile = getTile(raster, tx, ty);
+                byte[] delta = new byte[dataBytes(tile)];
+                inflater.reset();
+                inflater.setInput(data, pos, len);
+                try {
+                    int off = 0;
+                    while (off < delta.length && !inflater.finished()) {
+                        int n = inflater.inflate(delta, off, delta.length - off);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        off += n;
+                    }
+                    if (off < delta.length) {
+                        throw new IOException("Corrupt history: a tile is truncated");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt history: " + e.getMessage());
+                }
+                xorInto(tile, delta);
+                setTile(raster, tx, ty, tile);
+                restored = union(restored, tx, ty);
+                pos += len;
+            }
+        }
+        return restored;
+    }
+
+    private void spillOverBudget() throws IOException {
+        for (int i = 0; heapBytes > budget && i < versions.size() - 1; i++) {
+            Version version = versions.get(i);
+            if (version.delta == null) {
+                continue;
+            }
+            if (spillAccess == null) {
+                spillFile = File.createTempFile("imagecoder-history", ".tmp");
+                spillFile.deleteOnExit();
+                spillAccess = new RandomAccessFile(spillFile, "rw");
+            }
+            FileChannel channel = spillAccess.getChannel();
+            ByteBuffer bb = ByteBuffer.wrap(version.delta);
+            long pos = spillEnd;
+            while (bb.hasRemaining()) {
+                pos += channel.write(bb, pos);
+            }
+            version.fileOffset = spillEnd;
+            spillEnd = pos;
+            version.delta = null;
+            heapBytes -= version.size;
+        }
+    }
+
+    private byte[] readSpilled(Version version) throws IOException {
+        // not mapped: Java has no way to unmap a buffer other than garbage
+        // collection, and while a mapping is open Windows refuses to truncate
+        // or delete the file in pop() and clear(); the Inflater needs a byte
+        // array anyway, so a map would be copied just the same
+        FileChannel channel = spillAccess.getChannel();
+        byte[] data = new byte[version.size];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        long pos = version.fileOffset;
+        while (bb.hasRemaining()) {
+            int n = channel.read(bb, pos);
+            if (n < 0) {
+                throw new IOException("Corrupt history: the spill file is truncated");
+            }
+            pos += n;
+        }
+        return data;
+    }
+
+    private Object getTile(Raster raster, int tx, int ty) {
+        int x = tx * TILE_SIZE;
+        int y = ty * TILE_SIZE;
+        return raster.getDataElements(x, y,
+                Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y), null);
+    }
+
+    private void setTile(WritableRaster raster, int tx, int ty, Object tile) {
+        int x = tx * TILE_SIZE;
+        int y = ty * TILE_SIZE;
+        raster.setDataElements(x, y,
+                Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y), tile);
+    }
+
+    /**
+     * Returns the union of r and the bounds of a tile, where r may be null.
+     */
+    private Rectangle union(Rectangle r, int tx, int ty) {
+        int x = tx * TILE_SIZE;
+        int y = ty * TILE_SIZE;
+        Rectangle tile = new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+        return r == null ? tile : r.union(tile);
+    }
+
+    private void checkSize(BufferedImage image) {
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException("image size does not match history");
+        }
+    }
+
+    /**
+     * Returns the bytes of a XOR b, or null if a and b are equal. Both must be
+     * tile data of the same type and length.
+     */
+    private static byte[] xorBytes(Object a, Object b) {
+        byte[] out = new byte[dataBytes(a)];
+        int diff = 0;
+        if (a instanceof int[]) {
+            int[] ia = (int[]) a;
+            int[] ib = (int[]) b;
+            for (int i = 0, j = 0; i < ia.length; i++) {
+                int v = ia[i] ^ ib[i];
+                diff |= v;
+                out[j++] = (byte) (v >>> 24);
+                out[j++] = (byte) (v >>> 16);
+                out[j++] = (byte) (v >>> 8);
+                out[j++] = (byte) v;
+            }
+        } else if (a instanceof short[]) {
+            short[] sa = (short[]) a;
+            short[] sb = (short[]) b;
+            for (int i = 0, j = 0; i < sa.length; i++) {
+                int v = sa[i] ^ sb[i];
+                diff |= v;
+                out[j++] = (byte) (v >>> 8);
+                out[j++] = (byte) v;
+            }
+        } else {
+            byte[] ba = (byte[]) a;
+            byte[] bb = (byte[]) b;
+            for (int i = 0; i < ba.length; i++) {
+                int v = ba[i] ^ bb[i];
+                diff |= v;
+                out[i] = (byte) v;
+            }
+        }
+        return diff == 0 ? null : out;
+    }
+
+    private static void xorInto(Object tile, byte[] delta) {
+        if (tile instanceof int[]) {
+            int[] it = (int[]) tile;
+            for (int i = 0, j = 0; i < it.length; i++, j += 4) {
+                it[i] ^= (delta[j] << 24) | ((delta[j + 1] & 0xff) << 16)
+                        | ((delta[j + 2] & 0xff) << 8) | (delta[j + 3] & 0xff);
+            }
+        } else if (tile instanceof short[]) {
+            short[] st = (short[]) tile;
+            for (int i = 0, j = 0; i < st.length; i++, j += 2) {
+                st[i] ^= (short) ((delta[j] << 8) | (delta[j + 1] & 0xff));
+            }
+        } else {
+            byte[] bt = (byte[]) tile;
+            for (int i = 0; i < bt.length; i++) {
+                bt[i] ^= delta[i];
+            }
+        }
+    }
+
+    private static int dataBytes(Object tile) {
+        if (tile instanceof int[]) {
+            return ((int[]) tile).length * 4;
+        } else if (tile instanceof short[]) {
+            return ((short[]) tile).length * 2;
+        }
+        return ((byte[]) tile).length;
+    }
+
+    /**
+     * One stored version: either the uncompressed tiles that were saved, null
+     * where a tile was not, a delta against the successor in memory, or a
+     * delta against the successor on disk.
+     */
+    private static class Version {
+
+        Object[] tiles;
+        int[] deltaLengths;
+        byte[] delta;
+        long fileOffset = -1;
+        int size;
+    }
+}
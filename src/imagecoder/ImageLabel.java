@@ -19,7 +19,8 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.beans.*;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.concurrent.Executor;
 import javax.swing.*;
 
 /**
@@ -28,9 +29,40 @@ import javax.swing.*;
  */
 public class ImageLabel extends JLabel implements MouseMotionListener {
 
-    public static final int MIN_PROGRESS_TO_REPAINT = 5;
-    private ArrayList<BufferedImage> images = new ArrayList<BufferedImage>();
-    private int lastRepaintProgress;
+    public static final int MAX_PREVIEW_FPS = 20;
+    // the maximum number of pixels of the proxy a quick preview is computed on
+    public static final int PROXY_PIXELS = 512 * 512;
+    // heap budget of the undo history, set with -Dimagecoder.historyBudgetMB
+    private static final long HISTORY_BUDGET = 1024L * 1024
+            * Integer.getInteger("imagecoder.historyBudgetMB", 128);
+    // the current image, always of TYPE_INT_ARGB or TYPE_INT_RGB, and the
+    // previous versions of it, which are restored into it; image is only
+    // changed with setDataElements() on the event dispatch thread, so Java2D
+    // keeps it cached in video memory
+    private BufferedImage image;
+    private ImageHistory history;
+    // the copy of image that filters write to, through its int array; the
+    // regions they wrote are copied into image, after the history saved them
+    private BufferedImage working;
+    // scaled-down versions of image; the image is shown at 1/2^zoomLevel
+    private MipmapPyramid pyramid;
+    private int zoomLevel;
+    // live preview while a filter runs: the regions the filter wrote are
+    // copied from working into image at most MAX_PREVIEW_FPS times per
+    // second, so painting never reads pixels that are being written
+    private ImageFilterTask previewTask;
+    private Timer previewTimer;
+    // the bounds of all regions copied since the filter started
+    private Rectangle previewCopied;
+    // quick preview: a filtered, scaled-down copy of image, shown instead of
+    // image until a filter is applied or the history changes
+    private ImageFilterTask proxyTask;
+    private BufferedImage proxyImage;
+    // a subsampled copy of an image that is being loaded, shown at the size
+    // of that image instead of image, until setImage() is called
+    private BufferedImage loadingPreview;
+    private Dimension loadingSize;
+    private volatile int paintCount;
     private int lastScrolledX;
     private int lastScrolledY;
 
@@ -41,13 +73,29 @@ public class ImageLabel extends JLabel implements MouseMotionListener {
 
     @Override
     protected void paintComponent(Graphics g) {
+        paintCount++;
+
+        if (loadingPreview != null) {
+            super.paintComponent(g);
+            Graphics2D g2d = (Graphics2D) g.create();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(loadingPreview, 0, 0, loadingSize.width, loadingSize.height, this);
+            g2d.dispose();
+            return;
+        }
 
         BufferedImage image = getLastImage();
-        if (image == null || image.getWidth() < getWidth() || image.getHeight() < getHeight()) {
+        if (image == null || pyramid.getWidth(zoomLevel) < getWidth()
+                || pyramid.getHeight(zoomLevel) < getHeight()) {
             super.paintComponent(g);
         }
-        if (image != null) {
-            g.drawImage(getLastImage(), 0, 0, this);
+        if (image != null && proxyImage != null) {
+            Graphics2D g2d = (Graphics2D) g.create();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(proxyImage, 0, 0, pyramid.getWidth(zoomLevel), pyramid.getHeight(zoomLevel), this);
+            g2d.dispose();
+        } else if (image != null) {
+            pyramid.paint(g, zoomLevel, g.getClipBounds(), this);
         }
     }
 
@@ -61,54 +109,335 @@ public class ImageLabel extends JLabel implements MouseMotionListener {
             setLayout(null);
         }
 
-        images.clear();
-        images.add(image);
+        if (history != null) {
+            history.dispose();
+        }
+        this.image = ImageFilterTask.copyIntPacked(image);
+        working = ImageFilterTask.copyIntPacked(this.image);
+        history = new ImageHistory(image.getWidth(), image.getHeight(), HISTORY_BUDGET);
+        pyramid = new MipmapPyramid(this.image);
+        zoomLevel = 0;
+        clearProxy();
+        loadingPreview = null;
+        loadingSize = null;
         setText(null);
         setPreferredSize(new Dimension(image.getWidth(), image.getHeight()));
         invalidate();
     }
 
+    /**
+     * Shows a preview of an image that is being loaded, scaled to the size of
+     * that image, until setImage() or clearLoadingPreview() is called. Filters
+     * cannot be applied meanwhile.
+     * @param preview the subsampled image
+     * @param width the width of the image that is being loaded
+     * @param height the height of the image that is being loaded
+     */
+    public void setLoadingPreview(BufferedImage preview, int width, int height) {
+        if (getLayout() != null) {
+            removeAll();
+            setLayout(null);
+        }
+        clearProxy();
+        loadingPreview = preview;
+        loadingSize = new Dimension(width, height);
+        setText(null);
+        setPreferredSize(loadingSize);
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Stops showing the preview of setLoadingPreview(), and shows the image
+     * again, if any.
+     */
+    public void clearLoadingPreview() {
+        if (loadingPreview == null) {
+            return;
+        }
+        loadingPreview = null;
+        loadingSize = null;
+        if (image != null) {
+            setPreferredSize(new Dimension(pyramid.getWidth(zoomLevel), pyramid.getHeight(zoomLevel)));
+        } else {
+            setText("No image loaded.");
+            setPreferredSize(null);
+        }
+        revalidate();
+        repaint();
+    }
+
+    public boolean isLoading() {
+        return loadingPreview != null;
+    }
+
+    public int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    /**
+     * Shows the image at 1/2^level of its size, keeping the center of the
+     * view in place.
+     * @param level the zoom level, from 0 to getMaxZoomLevel()
+     */
+    public void setZoomLevel(int level) {
+        if (!hasImage() || level < 0 || level > getMaxZoomLevel() || level == zoomLevel) {
+            return;
+        }
+
+        Rectangle vis = getVisibleRect();
+        int cx = (vis.x + vis.width / 2) << zoomLevel;
+        int cy = (vis.y + vis.height / 2) << zoomLevel;
+        zoomLevel = level;
+        setPreferredSize(new Dimension(pyramid.getWidth(level), pyramid.getHeight(level)));
+        revalidate();
+        repaint();
+
+        final Rectangle r = new Rectangle((cx >> level) - vis.width / 2, (cy >> level) - vis.height / 2,
+                vis.width, vis.height);
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                scrollRectToVisible(r);
+            }
+        });
+    }
+
+    public int getMaxZoomLevel() {
+        return pyramid == null ? 0 : pyramid.getMaxLevel();
+    }
+
+    public boolean canZoomIn() {
+        return hasImage() && zoomLevel > 0;
+    }
+
+    public boolean canZoomOut() {
+        return hasImage() && zoomLevel < getMaxZoomLevel();
+    }
+
+    public void zoomIn() {
+        setZoomLevel(zoomLevel - 1);
+    }
+
+    public void zoomOut() {
+        setZoomLevel(zoomLevel + 1);
+    }
+
     public void applyFilter(ImageFilterTask filterTask) {
+        applyFilter(filterTask, null);
+    }
+
+    /**
+     * Applies a filter to the image, and shows its progress. The filter runs
+     * on the working copy of the image, and the image is updated from it on
+     * the event dispatch thread.
+     * @param filterTask the filter to apply
+     * @param executor the executor that runs the filter, or null to run it
+     * on the shared SwingWorker threads
+     */
+    public void applyFilter(ImageFilterTask filterTask, Executor executor) {
+        if (!canApplyFilter()) {
+            return;
+        }
+        clearProxy();
+
+        final ImageFilterTask task = filterTask;
+        filterTask.addPropertyChangeListener(new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("state".equals(evt.getPropertyName())
+                        && SwingWorker.StateValue.DONE.equals(evt.getNewValue())) {
+                    finishFilter(task);
+                }
+            }
+        });
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                startPreview(task);
+            }
+        });
+        if (executor == null) {
+            filterTask.filter(working);
+        } else {
+            filterTask.filter(working, executor);
+        }
+    }
+
+    /**
+     * Applies a filter to a scaled-down copy of the image, and shows the
+     * result instead of the image when it is done. The copy is the smallest
+     * zoom level that has at most PROXY_PIXELS pixels, but not smaller than
+     * the current zoom level, so the result shows quickly. The image and the
+     * history are not changed. Must be called on the event dispatch thread.
+     * @param filterTask the filter to apply
+     */
+    public void applyFilterToProxy(ImageFilterTask filterTask) {
         if (!canApplyFilter()) {
             return;
         }
 
-        lastRepaintProgress = 0;
+        int level = zoomLevel;
+        while (level < pyramid.getMaxLevel()
+                && (long) pyramid.getWidth(level) * pyramid.getHeight(level) > PROXY_PIXELS) {
+            level++;
+        }
+        final BufferedImage proxy = pyramid.createLevelImage(level);
+        final ImageFilterTask task = filterTask;
+        clearProxy();
+        proxyTask = task;
         filterTask.addPropertyChangeListener(new PropertyChangeListener() {
 
             public void propertyChange(PropertyChangeEvent evt) {
-                if ("progress".equals(evt.getPropertyName())
-                        && evt.getNewValue() instanceof Integer) {
-                    int newProgress = (Integer) evt.getNewValue();
-                    if (newProgress > lastRepaintProgress + MIN_PROGRESS_TO_REPAINT) {
-                        repaint();
-                        lastRepaintProgress = newProgress;
+                if ("state".equals(evt.getPropertyName())
+                        && SwingWorker.StateValue.DONE.equals(evt.getNewValue())
+                        && proxyTask == task) {
+                    proxyTask = null;
+                    try {
+                        task.get();
+                    } catch (Exception e) {
+                        return;
                     }
+                    proxyImage = proxy;
+                    repaint();
                 }
             }
         });
-        filterTask.filter(images.get(images.size() - 1));
+        filterTask.filter(proxy);
     }
 
-    public void undo() {
+    public boolean hasProxy() {
+        return proxyImage != null;
+    }
+
+    /**
+     * Stops showing the result of applyFilterToProxy().
+     */
+    public void clearProxy() {
+        if (proxyTask != null) {
+            proxyTask.requestCancel();
+            proxyTask = null;
+        }
+        if (proxyImage != null) {
+            proxyImage = null;
+            repaint();
+        }
+    }
+
+    /**
+     * Copies the regions that filterTask wrote into the image, and stops the
+     * preview. This is done when the task reports that it is done, which the
+     * task does some time after the filter returns; call this first if the
+     * image is needed before that. Must be called on the event dispatch
+     * thread, after the filter returned.
+     * @param filterTask the filter that was applied
+     */
+    public void finishFilter(ImageFilterTask filterTask) {
+        if (previewTask == filterTask) {
+            stopPreview();
+        }
+    }
+
+    private void startPreview(ImageFilterTask filterTask) {
+        stopPreview();
+        previewTask = filterTask;
+        previewCopied = null;
+        previewTimer = new Timer(1000 / MAX_PREVIEW_FPS, new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                updatePreview();
+            }
+        });
+        previewTimer.start();
+    }
+
+    private void stopPreview() {
+        if (previewTimer != null) {
+            previewTimer.stop();
+            previewTimer = null;
+        }
+        if (previewTask != null) {
+            // the filter is done, so all its writes are visible now; copy the
+            // regions that were copied while it ran again, as those copies may
+            // have missed writes that were in progress
+            Rectangle dirty = previewTask.takeDirtyRegion();
+            if (previewCopied != null) {
+                dirty = dirty == null ? previewCopied : dirty.union(previewCopied);
+            }
+            if (dirty != null) {
+                copyFromWorking(dirty);
+                pyramid.invalidate(dirty);
+            }
+            previewTask = null;
+            previewCopied = null;
+            repaint();
+        }
+    }
+
+    private void updatePreview() {
+        if (previewTask == null || image == null) {
+            return;
+        }
+        Rectangle dirty = previewTask.takeDirtyRegion();
+        if (dirty == null) {
+            return;
+        }
+        copyFromWorking(dirty);
+        pyramid.invalidate(dirty);
+        // at a zoom level above 0, the pyramid rebuilds the tiles from image
+        // as they are painted
+        int s = zoomLevel;
+        Rectangle r = new Rectangle(dirty.x >> s, dirty.y >> s,
+                ((dirty.x + dirty.width - 1) >> s) - (dirty.x >> s) + 1,
+                ((dirty.y + dirty.height - 1) >> s) - (dirty.y >> s) + 1);
+        // the parts outside the viewport are painted when they are scrolled in
+        r = r.intersection(getVisibleRect());
+        if (!r.isEmpty()) {
+            repaint(r);
+        }
+    }
+
+    /**
+     * Saves region r of image in the history, and copies r from the working
+     * copy into image.
+     */
+    private void copyFromWorking(Rectangle r) {
+        history.save(image, r);
+        image.getRaster().setDataElements(0, 0,
+                working.getRaster().createChild(r.x, r.y, r.width, r.height, r.x, r.y, null));
+        previewCopied = previewCopied == null ? new Rectangle(r) : previewCopied.union(r);
+    }
+
+    /**
+     * Copies region r, which was restored from the history, from image into
+     * the working copy, and shows it.
+     */
+    private void copyToWorking(Rectangle r) {
+        if (r != null) {
+            working.getRaster().setDataElements(0, 0,
+                    image.getRaster().createChild(r.x, r.y, r.width, r.height, r.x, r.y, null));
+            pyramid.invalidate(r);
+        }
+        repaint();
+    }
+
+    public void undo() throws IOException {
         if (!canUndo()) {
             return;
         }
 
         // undo
-        images.remove(images.size() - 1);
-        repaint();
+        clearProxy();
+        copyToWorking(history.pop(image));
     }
 
-    public void revert() {
+    public void revert() throws IOException {
         if (!canRevert()) {
             return;
         }
 
-        BufferedImage firstImage = images.get(0);
-        images.clear();
-        images.add(firstImage);
-        repaint();
+        clearProxy();
+        copyToWorking(history.revert(image));
     }
 
     public void purgeUndoList() {
@@ -116,39 +445,60 @@ public class ImageLabel extends JLabel implements MouseMotionListener {
             return;
         }
 
-        BufferedImage lastImage = images.get(images.size() - 1);
-        images.clear();
-        images.add(lastImage);
+        history.clear();
+    }
+
+    /**
+     * Returns the number of times this component was painted.
+     * @return the paint count
+     */
+    public int getPaintCount() {
+        return paintCount;
     }
 
     public boolean hasImage() {
-        return !images.isEmpty();
+        return image != null;
     }
 
     public BufferedImage getLastImage() {
-        return hasImage() ? images.get(images.size() - 1) : null;
+        return image;
     }
 
     public boolean canApplyFilter() {
-        return !images.isEmpty();
+        return hasImage() && !isLoading();
     }
 
     public boolean canUndo() {
-        return images.size() > 1;
+        return history != null && !history.isEmpty();
     }
 
     public boolean canRevert() {
-        return images.size() > 1;
+        return canUndo();
+    }
+
+    /**
+     * Starts a new version in the undo history, before a filter is applied to
+     * the image. Nothing is copied yet: the tiles are saved as the filter
+     * writes them. Older versions are compressed, and spilled to disk when
+     * the history is over its budget.
+     * @return the current image
+     * @throws IOException if the history could not spill to disk
+     */
+    public BufferedImage addCopyOfLast() throws IOException {
+        history.begin(image);
+        return image;
     }
 
-    public BufferedImage addCopyOfLast() {
-        BufferedImage lastImage = images.get(images.size() - 1);
-        BufferedImage newImage = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().createCompatibleImage(lastImage.getWidth(), lastImage.getHeight());
-        Graphics2D g2d = newImage.createGraphics();
-        g2d.drawImage(lastImage, 0, 0, null);
-        g2d.dispose();
-        images.add(newImage);
-        return newImage;
+    /**
+     * Returns whether Java2D caches the image in video memory for drawing on
+     * this component. An image stops being accelerated once its pixels are
+     * accessed through its int array, so filters write to a working copy
+     * instead.
+     * @return true if the image is accelerated
+     */
+    public boolean isImageAccelerated() {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        return image != null && gc != null && image.getCapabilities(gc).isAccelerated();
     }
 
     public void mouseMoved(MouseEvent e) {
@@ -156,10 +506,13 @@ public class ImageLabel extends JLabel implements MouseMotionListener {
         lastScrolledY = e.getYOnScreen();
         BufferedImage image = getLastImage();
         int color = 0;
-        if (image != null && e.getX() >= 0 && e.getY() >= 0
-                && e.getX() < image.getWidth() && e.getY() < image.getHeight()) {
-            color = image.getRGB(e.getX(), e.getY());
-            firePropertyChange("mouseMoved", e, color);
+        // the pixel under the mouse, in image coordinates
+        int x = e.getX() << zoomLevel;
+        int y = e.getY() << zoomLevel;
+        if (image != null && !isLoading() && x >= 0 && y >= 0
+                && x < image.getWidth() && y < image.getHeight()) {
+            color = image.getRGB(x, y);
+            firePropertyChange("mouseMoved", new Point(x, y), color);
         }
     }
 
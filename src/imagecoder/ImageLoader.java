@@ -0,0 +1,339 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+import util.RawImageFile;
+
+/**
+ * Reads image files on background threads, and keeps the most recently read
+ * images in a cache, so opening them again is instant. The cache is limited
+ * by the memory its images take, and a file is looked up by its path and the
+ * time it was last modified, so a changed file is read again.
+ * <p>
+ * For large images in formats that can be read at a lower resolution
+ * without decoding every pixel, such as JPEG, a subsampled preview is read
+ * in parallel with the full image and reported first.
+ * <p>
+ * Images are converted to TYPE_INT_ARGB or TYPE_INT_RGB on the loader thread,
+ * so filters and the display get the same fast layout whatever the decoder
+ * produced. Images returned by the loader are shared with the cache, so they
+ * must not be changed.
+ *
+ * @author agent
+ */
+public class ImageLoader {
+
+    // images with more pixels than this get a preview of about this size
+    public static final int PREVIEW_PIXELS = 1024 * 1024;
+    // formats whose readers skip the pixels they subsample, so a preview is
+    // cheaper than the full image; PNG and GIF must inflate everything
+    private static final Set<String> SUBSAMPLED_FORMATS = new HashSet<String>(
+            Arrays.asList("jpeg", "jpg", "bmp", "wbmp"));
+    private final ExecutorService pool;
+    private final long cacheBudget;
+    // the cached images in order of use, the least recently used first
+    private final Map<String, BufferedImage> cache = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+    private long cacheBytes;
+    // the files being read, so a file is never read twice at the same time
+    private final Map<String, FutureTask<BufferedImage>> reading = new HashMap<String, FutureTask<BufferedImage>>();
+    private int hits;
+    private int misses;
+
+    /**
+     * Receives the results of load(), on the event dispatch thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called before imageLoaded() if a preview was read.
+         * @param file the file
+         * @param preview the subsampled image
+         * @param width the width of the full image
+         * @param height the height of the full image
+         */
+        void previewLoaded(File file, BufferedImage preview, int width, int height);
+
+        void imageLoaded(File file, BufferedImage image);
+
+        void loadFailed(File file, Exception e);
+    }
+
+    /**
+     * Creates a loader.
+     * @param name the name of the loader threads
+     * @param threads the number of loader threads
+     * @param cacheBudget the maximum number of bytes of the cached images
+     */
+    public ImageLoader(final String name, int threads, long cacheBudget) {
+        this.cacheBudget = cacheBudget;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Reads file on a loader thread.
+     * @param file the file to read
+     * @param listener the listener that receives the preview and the image,
+     * or null to only read the image into the cache
+     * @return the future result
+     */
+    public Future<BufferedImage> load(final File file, final Listener listener) {
+        return pool.submit(new Callable<BufferedImage>() {
+
+            public BufferedImage call() throws Exception {
+                try {
+                    final BufferedImage image = read(file, listener);
+                    if (listener != null) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            public void run() {
+                                listener.imageLoaded(file, image);
+                            }
+                        });
+                    }
+                    return image;
+                } catch (final Exception e) {
+                    if (listener != null) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            public void run() {
+                                listener.loadFailed(file, e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads file in the calling thread, or returns it from the cache. If
+     * another thread is reading the same file, this waits for that thread.
+     * @param file the file to read
+     * @param listener the listener that receives a preview, or null
+     * @return the image
+     * @throws IOException if the file could not be read
+     */
+    public BufferedImage read(final File file, final Listener listener) throws IOException {
+        final String key = file.getAbsolutePath() + "@" + file.lastModified();
+        FutureTask<BufferedImage> task;
+        boolean reader = false;
+        synchronized (this) {
+            BufferedImage image = cache.get(key);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+            task = reading.get(key);
+            if (task == null) {
+                misses++;
+                task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+
+                    public BufferedImage call() throws IOException {
+                        return decode(file, listener);
+                    }
+                });
+                reading.put(key, task);
+                reader = true;
+            }
+        }
+        if (reader) {
+            task.run();
+        }
+        try {
+            BufferedImage image = task.get();
+            if (reader) {
+                addToCache(key, image);
+            }
+            return image;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading " + file.getName());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(String.valueOf(e.getCause()));
+        } finally {
+            if (reader) {
+                synchronized (this) {
+                    reading.remove(key);
+                }
+            }
+        }
+    }
+
+    private BufferedImage decode(final File file, final Listener listener) throws IOException {
+        if (RawImageFile.isRawFile(file)) {
+            return RawImageFile.read(file);
+        }
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (iis == null) {
+            throw new IOException("Cannot open " + file.getName());
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Cannot read this type of image.");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                final int w = reader.getWidth(0);
+                final int h = reader.getHeight(0);
+                final AtomicBoolean done = new AtomicBoolean();
+                if (listener != null && (long) w * h > PREVIEW_PIXELS
+                        && SUBSAMPLED_FORMATS.contains(reader.getFormatName().toLowerCase(Locale.ROOT))) {
+                    pool.execute(new Runnable() {
+
+                        public void run() {
+                            readPreview(file, listener, w, h, done);
+                        }
+                    });
+                }
+                BufferedImage image;
+                try {
+                    image = reader.read(0);
+                } finally {
+                    done.set(true);
+                }
+                return ImageFilterTask.toIntPacked(image);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Reads a subsampled copy of file with its own reader, and reports it if
+     * the full image is not done yet.
+     */
+    private void readPreview(final File file, final Listener listener, final int w, final int h,
+            final AtomicBoolean done) {
+        if (done.get()) {
+            return;
+        }
+        try {
+            ImageInputStream iis = ImageIO.createImageInputStream(file);
+            try {
+                ImageReader reader = ImageIO.getImageReaders(iis).next();
+                try {
+                    reader.setInput(iis, true, true);
+                    int step = (int) Math.ceil(Math.sqrt((double) w * h / PREVIEW_PIXELS));
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(step, step, 0, 0);
+                    final BufferedImage preview = reader.read(0, param);
+                    if (!done.get()) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            public void run() {
+                                listener.previewLoaded(file, preview, w, h);
+                            }
+                        });
+                    }
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                iis.close();
+            }
+        } catch (Exception e) {
+            // the full image reports the error, if any
+        }
+    }
+
+    private synchronized void addToCache(String key, BufferedImage image) {
+        long bytes = getBytes(image);
+        if (bytes > cacheBudget) {
+            return;
+        }
+        BufferedImage old = cache.put(key, image);
+        if (old != null) {
+            cacheBytes -= getBytes(old);
+        }
+        cacheBytes += bytes;
+        Iterator<BufferedImage> it = cache.values().iterator();
+        while (cacheBytes > cacheBudget && it.hasNext()) {
+            cacheBytes -= getBytes(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the number of bytes the pixels of image take.
+     */
+    static long getBytes(BufferedImage image) {
+        DataBuffer db = image.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /**
+     * Returns the cached image of file, if it was not changed since it was
+     * read.
+     * @param file the file
+     * @return the image, or null if it is not in the cache
+     */
+    public synchronized BufferedImage getCached(File file) {
+        return cache.get(file.getAbsolutePath() + "@" + file.lastModified());
+    }
+
+    public synchronized void clearCache() {
+        cache.clear();
+        cacheBytes = 0;
+    }
+
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Stops the loader threads after the files that are being read.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.SwingUtilities;
+import util.RawImageFile;
+
+/**
+ * Writes image files on a background thread, one at a time. PNG files are
+ * written by ParallelPngEncoder, which compresses on all kernel threads, and
+ * raw files by RawImageFile; other formats by their ImageIO writer, with the
+ * compression quality given.
+ *
+ * @author agent
+ */
+public class ImageSaver {
+
+    private final ExecutorService thread;
+
+    /**
+     * Receives the results of save(), on the event dispatch thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the file is written.
+         * @param file the file
+         * @param bytes the size of the file
+         * @param nanos the time it took to encode and write it
+         * @param pixelBytes the size of the pixels that were encoded, for
+         * the throughput
+         */
+        void imageSaved(File file, long bytes, long nanos, long pixelBytes);
+
+        void saveFailed(File file, Exception e);
+    }
+
+    /**
+     * Creates a saver.
+     * @param name the name of the saver thread
+     */
+    public ImageSaver(final String name) {
+        thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns whether a compression quality makes a difference for format:
+     * the deflate level for PNG, or the loss of detail for lossy formats.
+     * @param format the informal name of the format, such as png
+     * @return true if format is PNG, or its writer compresses with loss
+     */
+    public static boolean canSetQuality(String format) {
+        if (isPng(format)) {
+            return true;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            return false;
+        }
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!param.canWriteCompressed()) {
+                return false;
+            }
+            setCompression(param);
+            return !param.isCompressionLossless();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Returns whether quality means the deflate level for format, which is
+     * lossless, rather than the loss of detail.
+     * @param format the informal name of the format
+     * @return true if format is PNG
+     */
+    public static boolean isPng(String format) {
+        return "png".equalsIgnoreCase(format);
+    }
+
+    /**
+     * Writes image to file on the saver thread. The image must not change
+     * until the listener is called.
+     * @param image the image
+     * @param file the file to write
+     * @param format the informal name of the format, such as png
+     * @param quality the compression quality from 0 to 1, or -1 for the
+     * default of the writer; like ImageWriteParam, for PNG, 1 means the
+     * fastest and 0 the smallest
+     * @param listener the listener, or null
+     * @return the future size of the file
+     */
+    public Future<Long> save(final BufferedImage image, final File file, final String format,
+            final float quality, final Listener listener) {
+        return thread.submit(new Callable<Long>() {
+
+            public Long call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    write(image, file, format, quality);
+                    final long nanos = System.nanoTime() - start;
+                    final long bytes = file.length();
+                    final long pixelBytes = ImageLoader.getBytes(image);
+                    if (listener != null) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            public void run() {
+                                listener.imageSaved(file, bytes, nanos, pixelBytes);
+                            }
+                        });
+                    }
+                    return bytes;
+                } catch (final Exception e) {
+                    if (listener != null) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            public void run() {
+                                listener.saveFailed(file, e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes image to file in the calling thread.
+     * @param image the image
+     * @param file the file to write
+     * @param format the informal name of the format, such as png
+     * @param quality the compression quality from 0 to 1, or -1 for the default
+     * @throws IOException if the file could not be written, or the format is
+     * not supported
+     */
+    public static void write(BufferedImage image, File file, String format, float quality) throws IOException {
+        if (RawImageFile.SUFFIX.equalsIgnoreCase(format)) {
+            RawImageFile.write(image, file);
+            return;
+        }
+        if (isPng(format)) {
+            int level = quality < 0 ? 6 : Math.round(9 * (1 - Math.min(1, quality)));
+            OutputStream out = new FileOutputStream(file);
+            try {
+                new ParallelPngEncoder(level).encode(image, out);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("This file type (" + format + ") is not supported by your Java system.");
+        }
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality >= 0 && param.canWriteCompressed()) {
+                setCompression(param);
+                param.setCompressionQuality(Math.min(1, quality));
+            }
+            file.delete();
+            ImageOutputStream out = ImageIO.createImageOutputStream(file);
+            if (out == null) {
+                throw new IOException("Cannot write " + file);
+            }
+            try {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                out.close();
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Sets param to compress explicitly, with the first compression type if
+     * the writer has no default.
+     */
+    private static void setCompression(ImageWriteParam param) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+            param.setCompressionType(param.getCompressionTypes()[0]);
+        }
+    }
+
+    public void shutdown() {
+        thread.shutdown();
+    }
+}
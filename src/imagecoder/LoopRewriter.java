@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces pixel accessors in a filter() snippet with their unchecked
+ * versions where the coordinates are known to be inside the image.
+ * <p>
+ * A loop is verified if it has the form
+ * <code>for (int v = 0; v &lt; width(); v++) { ... }</code> (or height(),
+ * getWidth(), getHeight(), ++v), and v is neither assigned nor declared again
+ * in its body. Within the bodies of a verified width loop over x and a
+ * verified height loop over y, calls such as <code>getRGB(x, y)</code> and
+ * <code>setRGB(x, y, c)</code> cannot be out of bounds, so they are replaced.
+ * All other calls keep their bounds checks.
+ *
+ * @author agent
+ */
+public class LoopRewriter {
+
+    private static final Pattern LOOP = Pattern.compile(
+            "\\bfor\\s*\\(\\s*int\\s+(\\w+)\\s*=\\s*0\\s*;\\s*\\1\\s*<\\s*(width|getWidth|height|getHeight)"
+            + "\\s*\\(\\s*\\)\\s*;\\s*(?:\\1\\s*\\+\\+|\\+\\+\\s*\\1)\\s*\\)\\s*\\{");
+    private static final Pattern ACCESSOR = Pattern.compile(
+            "(?<![\\w.])(getRGB|setRGB|rgb|getA|getR|getG|getB|alpha|red|green|blue)"
+            + "\\s*\\(\\s*(\\w+)\\s*,\\s*(\\w+)\\s*([,)])");
+    private static final Map<String, String> GETTERS = new HashMap<String, String>();
+
+    static {
+        GETTERS.put("getRGB", "getRGBUnchecked");
+        GETTERS.put("rgb", "getRGBUnchecked");
+        GETTERS.put("getA", "getAUnchecked");
+        GETTERS.put("alpha", "getAUnchecked");
+        GETTERS.put("getR", "getRUnchecked");
+        GETTERS.put("red", "getRUnchecked");
+        GETTERS.put("getG", "getGUnchecked");
+        GETTERS.put("green", "getGUnchecked");
+        GETTERS.put("getB", "getBUnchecked");
+        GETTERS.put("blue", "getBUnchecked");
+    }
+
+    private LoopRewriter() {
+    }
+
+    /**
+     * Returns code with the accessors inside verified loops replaced.
+     * @param code the body of a filter() method
+     * @return the rewritten code, or code itself if nothing was replaced
+     */
+    public static String rewrite(String code) {
+        String masked = mask(code);
+        List<Loop> loops = findLoops(masked);
+        if (loops.isEmpty()) {
+            return code;
+        }
+
+        StringBuilder sb = new StringBuilder(code.length() + 256);
+        int copied = 0;
+        Matcher m = ACCESSOR.matcher(masked);
+        while (m.find()) {
+            String name = m.group(1);
+            boolean setter = "setRGB".equals(name) || ("rgb".equals(name) && ",".equals(m.group(4)));
+            if ((setter && !",".equals(m.group(4))) || (!setter && !")".equals(m.group(4)))) {
+                continue;
+            }
+            if (!isBound(loops, m.group(2), true, m.start()) || !isBound(loops, m.group(3), false, m.start())) {
+                continue;
+            }
+            sb.append(code, copied, m.start(1));
+            sb.append(setter ? "setRGBUnchecked" : GETTERS.get(name));
+            copied = m.end(1);
+        }
+        if (copied == 0) {
+            return code;
+        }
+        sb.append(code, copied, code.length());
+        return sb.toString();
+    }
+
+    private static boolean isBound(List<Loop> loops, String var, boolean horizontal, int pos) {
+        for (Loop loop : loops) {
+            if (loop.var.equals(var) && loop.horizontal == horizontal
+                    && pos > loop.bodyStart && pos < loop.bodyEnd) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Loop> findLoops(String masked) {
+        List<Loop> loops = new ArrayList<Loop>();
+        Matcher m = LOOP.matcher(masked);
+        while (m.find()) {
+            int bodyStart = m.end() - 1;
+            int bodyEnd = matchBrace(masked, bodyStart);
+            if (bodyEnd < 0) {
+                continue;
+            }
+            String var = m.group(1);
+            String body = masked.substring(bodyStart + 1, bodyEnd);
+            Pattern changed = Pattern.compile(
+                    "\\b" + var + "\\s*(?:[-+*/%&|^]|<<|>>>?)?=(?!=)"
+                    + "|\\b" + var + "\\s*(?:\\+\\+|--)"
+                    + "|(?:\\+\\+|--)\\s*" + var + "\\b"
+                    + "|\\b(?:int|long|short|byte|char|float|double)\\s+" + var + "\\b");
+            if (changed.matcher(body).find()) {
+                continue;
+            }
+            Loop loop = new Loop();
+            loop.var = var;
+            loop.horizontal = m.group(2).toLowerCase().endsWith("width");
+            loop.bodyStart = bodyStart;
+            loop.bodyEnd = bodyEnd;
+            loops.add(loop);
+        }
+        return loops;
+    }
+
+    private static int matchBrace(String s, int open) {
+        int depth = 0;
+        for (int i = open; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns code with comments and the contents of literals replaced by
+     * spaces, so that positions in the result match positions in code.
+     */
+    static String mask(String code) {
+        char[] chars = code.toCharArray();
+        int n = chars.length;
+        for (int i = 0; i < n; i++) {
+            char c = chars[i];
+            if (c == '/' && i + 1 < n && chars[i + 1] == '/') {
+                for (; i < n && chars[i] != '\n'; i++) {
+                    chars[i] = ' ';
+                }
+            } else if (c == '/' && i + 1 < n && chars[i + 1] == '*') {
+                int end = code.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                for (; i < end; i++) {
+                    if (chars[i] != '\n') {
+                        chars[i] = ' ';
+                    }
+                }
+                i--;
+            } else if (c == '"' || c == '\'') {
+                for (i++; i < n && chars[i] != c && chars[i] != '\n'; i++) {
+                    if (chars[i] == '\\' && i + 1 < n) {
+                        chars[i++] = ' ';
+                    }
+                    chars[i] = ' ';
+                }
+            }
+        }
+        return new String(chars);
+    }
+
+    private static class Loop {
+
+        String var;
+        boolean horizontal;
+        int bodyStart;
+        int bodyEnd;
+    }
+}
@@ -21,13 +21,21 @@ import javax.swing.*;
 /**
  * Start-up code for the Image Coder program.
  * It switches Swing to the System Look And Feel, and creates a controller frame
- * and image viewer frame.
+ * and image viewer frame. When started with --batch, it applies a snippet to
+ * image files without a user interface instead; see BatchRunner.
  *
  * @author Barend Scholtus
  */
 public class Main {
 
     public static void main(String[] args) {
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            System.setProperty("java.awt.headless", "true");
+            String[] batchArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, batchArgs, 0, batchArgs.length);
+            System.exit(BatchRunner.runFromCommandLine(batchArgs));
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.util.Arrays;
+
+/**
+ * Scaled-down versions of an image for zoomed-out display. Level n is the
+ * image at 1/2^n of its size; level 0 is the image itself. Each level is
+ * split into tiles, and a tile is computed only when it is painted, from the
+ * four tiles below it, by averaging every 2 x 2 block of pixels. When pixels
+ * of the image change, only the tiles that cover them are thrown away.
+ * <p>
+ * This class is not thread safe; it is meant to be used on the event
+ * dispatch thread. The image may be written by another thread meanwhile, in
+ * which case a tile may show a mix of old and new pixels until it is
+ * invalidated.
+ *
+ * @author agent
+ */
+public class MipmapPyramid {
+
+    public static final int TILE_SIZE = 256;
+    private final BufferedImage image;
+    private final int maxLevel;
+    private final int tileType;
+    // the tiles of every level, row by row; level 0 is not stored
+    private final BufferedImage[][] tiles;
+    private final int[] tilesX;
+    private final int[] widths;
+    private final int[] heights;
+    private final int[] src = new int[4 * TILE_SIZE * TILE_SIZE];
+    private final int[] dst = new int[TILE_SIZE * TILE_SIZE];
+
+    /**
+     * Creates the pyramid of image. The smallest level is the first one that
+     * fits in a single tile.
+     * @param image the image at full size
+     */
+    public MipmapPyramid(BufferedImage image) {
+        this.image = image;
+        int levels = 0;
+        while (((image.getWidth() - 1) >> levels) >= TILE_SIZE
+                || ((image.getHeight() - 1) >> levels) >= TILE_SIZE) {
+            levels++;
+        }
+        maxLevel = levels;
+        tileType = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        tiles = new BufferedImage[maxLevel + 1][];
+        tilesX = new int[maxLevel + 1];
+        widths = new int[maxLevel + 1];
+        heights = new int[maxLevel + 1];
+        for (int level = 0; level <= maxLevel; level++) {
+            widths[level] = getWidth(level);
+            heights[level] = getHeight(level);
+            tilesX[level] = (widths[level] + TILE_SIZE - 1) / TILE_SIZE;
+            if (level > 0) {
+                tiles[level] = new BufferedImage[tilesX[level] * ((heights[level] + TILE_SIZE - 1) / TILE_SIZE)];
+            }
+        }
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * Returns the width of the image at the given level, rounded up.
+     * @param level the level
+     * @return the width in pixels
+     */
+    public int getWidth(int level) {
+        return ((image.getWidth() - 1) >> level) + 1;
+    }
+
+    /**
+     * Returns the height of the image at the given level, rounded up.
+     * @param level the level
+     * @return the height in pixels
+     */
+    public int getHeight(int level) {
+        return ((image.getHeight() - 1) >> level) + 1;
+    }
+
+    /**
+     * Returns a new image with all pixels of a level.
+     * @param level the level
+     * @return a copy of the level, of TYPE_INT_RGB or TYPE_INT_ARGB
+     */
+    public BufferedImage createLevelImage(int level) {
+        BufferedImage copy = new BufferedImage(widths[level], heights[level], tileType);
+        Graphics2D g2d = copy.createGraphics();
+        g2d.setComposite(AlphaComposite.Src);
+        paint(g2d, level, null, null);
+        g2d.dispose();
+        return copy;
+    }
+
+    /**
+     * Draws the part of a level that intersects clip. Only the tiles under
+     * clip are computed and drawn.
+     * @param g the graphics to draw on
+     * @param level the level to draw
+     * @param clip the area to draw, in the coordinates of level, or null to draw all of it
+     * @param observer the observer of the drawing
+     */
+    public void paint(Graphics g, int level, Rectangle clip, ImageObserver observer) {
+        Rectangle r = new Rectangle(widths[level], heights[level]);
+        if (clip != null) {
+            r = r.intersection(clip);
+        }
+        if (r.isEmpty()) {
+            return;
+        }
+        if (level == 0) {
+            g.drawImage(image, r.x, r.y, r.x + r.width, r.y + r.height,
+                    r.x, r.y, r.x + r.width, r.y + r.height, observer);
+            return;
+        }
+        int tx0 = r.x / TILE_SIZE;
+        int tx1 = (r.x + r.width - 1) / TILE_SIZE;
+        int ty0 = r.y / TILE_SIZE;
+        int ty1 = (r.y + r.height - 1) / TILE_SIZE;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                g.drawImage(getTile(level, tx, ty), tx * TILE_SIZE, ty * TILE_SIZE, observer);
+            }
+        }
+    }
+
+    /**
+     * Throws away the tiles that show any pixel of r.
+     * @param r the changed pixels, in image coordinates
+     */
+    public void invalidate(Rectangle r) {
+        r = r.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int level = 1; level <= maxLevel; level++) {
+            int tx0 = (r.x >> level) / TILE_SIZE;
+            int tx1 = ((r.x + r.width - 1) >> level) / TILE_SIZE;
+            int ty0 = (r.y >> level) / TILE_SIZE;
+            int ty1 = ((r.y + r.height - 1) >> level) / TILE_SIZE;
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    tiles[level][ty * tilesX[level] + tx] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws away all tiles.
+     */
+    public void invalidateAll() {
+        for (int level = 1; level <= maxLevel; level++) {
+            Arrays.fill(tiles[level], null);
+        }
+    }
+
+    private BufferedImage getTile(int level, int tx, int ty) {
+        BufferedImage tile = tiles[level][ty * tilesX[level] + tx];
+        if (tile == null) {
+            tile = createTile(level, tx, ty);
+            tiles[level][ty * tilesX[level] + tx] = tile;
+        }
+        return tile;
+    }
+
+    private BufferedImage createTile(int level, int tx, int ty) {
+        // the area of the level below that this tile shows
+        int sx = 2 * tx * TILE_SIZE;
+        int sy = 2 * ty * TILE_SIZE;
+        int sw = Math.min(2 * TILE_SIZE, widths[level - 1] - sx);
+        int sh = Math.min(2 * TILE_SIZE, heights[level - 1] - sy);
+        readArea(level - 1, sx, sy, sw, sh);
+
+        int tw = (sw + 1) / 2;
+        int th = (sh + 1) / 2;
+        for (int y = 0; y < th; y++) {
+            int row0 = 2 * y * sw;
+            int row1 = Math.min(2 * y + 1, sh - 1) * sw;
+            int i = y * tw;
+            for (int x = 0; x < tw; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, sw - 1);
+                dst[i++] = average(src[row0 + x0], src[row0 + x1], src[row1 + x0], src[row1 + x1]);
+            }
+        }
+
+        BufferedImage tile = new BufferedImage(tw, th, tileType);
+        // setDataElements keeps the tile managed, so it can be cached in video memory
+        tile.getRaster().setDataElements(0, 0, tw, th, dst);
+        return tile;
+    }
+
+    /**
+     * Reads an area of a level into src, with a scanline stride of w.
+     */
+    private void readArea(int level, int x, int y, int w, int h) {
+        if (level == 0) {
+            if (ImageFilterTask.isIntPacked(image)) {
+                image.getRaster().getDataElements(x, y, w, h, src);
+            } else {
+                image.getRGB(x, y, w, h, src, 0, w);
+            }
+            return;
+        }
+        // the area is made of up to 2 x 2 tiles of the level; create them
+        // first, because creating a tile overwrites src and dst
+        BufferedImage[] parts = new BufferedImage[4];
+        int n = 0;
+        for (int ty = y / TILE_SIZE; ty * TILE_SIZE < y + h; ty++) {
+            for (int tx = x / TILE_SIZE; tx * TILE_SIZE < x + w; tx++) {
+                parts[n++] = getTile(level, tx, ty);
+            }
+        }
+        int[] part = dst;
+        n = 0;
+        for (int ty = y / TILE_SIZE; ty * TILE_SIZE < y + h; ty++) {
+            for (int tx = x / TILE_SIZE; tx * TILE_SIZE < x + w; tx++) {
+                BufferedImage tile = parts[n++];
+                int pw = tile.getWidth();
+                int ph = tile.getHeight();
+                tile.getRaster().getDataElements(0, 0, pw, ph, part);
+                int ox = tx * TILE_SIZE - x;
+                int oy = ty * TILE_SIZE - y;
+                for (int row = 0; row < ph; row++) {
+                    System.arraycopy(part, row * pw, src, (oy + row) * w + ox, pw);
+                }
+            }
+        }
+    }
+
+    private static int average(int c0, int c1, int c2, int c3) {
+        int ag = ((c0 >>> 8) & 0x00ff00ff) + ((c1 >>> 8) & 0x00ff00ff)
+                + ((c2 >>> 8) & 0x00ff00ff) + ((c3 >>> 8) & 0x00ff00ff);
+        int rb = (c0 & 0x00ff00ff) + (c1 & 0x00ff00ff)
+                + (c2 & 0x00ff00ff) + (c3 & 0x00ff00ff);
+        // each channel sum fits in 10 bits, so two channels add up per int
+        return (((ag + 0x00020002) << 6) & 0xff00ff00) | (((rb + 0x00020002) >>> 2) & 0x00ff00ff);
+    }
+}
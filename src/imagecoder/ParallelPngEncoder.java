@@ -0,0 +1,335 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes images as 8-bit RGB or RGBA PNG files, compressing bands of rows on
+ * the threads of PixelKernelTask. Every band is filtered and deflated on its
+ * own, with the last 32 KB of the band before it as the dictionary, and
+ * ended with a sync flush, so the bands join into one zlib stream that any
+ * PNG reader can inflate. Each band is written as one IDAT chunk.
+ * <p>
+ * Every row gets the PNG filter that gives the smallest sum of absolute
+ * differences, like libpng does by default.
+ *
+ * @author agent
+ */
+public class ParallelPngEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    // the size of the deflate window, and so of the dictionary of a band
+    private static final int WINDOW = 32 * 1024;
+    // the minimum number of bytes of filtered rows per band
+    private static final int MIN_BAND_BYTES = 256 * 1024;
+    private final int level;
+
+    /**
+     * Creates an encoder.
+     * @param level the deflate level, from 0 (no compression) to 9 (smallest)
+     */
+    public ParallelPngEncoder(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("level must be from 0 to 9");
+        }
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Writes image as a PNG file to out. The stream is not closed.
+     * @param image the image
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    public void encode(final BufferedImage image, OutputStream out) throws IOException {
+        final int w = image.getWidth();
+        final int h = image.getHeight();
+        final boolean alpha = image.getColorModel().hasAlpha();
+        final int bpp = alpha ? 4 : 3;
+        final int rowBytes = 1 + w * bpp;
+
+        int bands = Math.max(1, Math.min(4 * PixelKernelTask.getPoolSize(),
+                (int) ((long) rowBytes * h / MIN_BAND_BYTES)));
+        final byte[][] compressed = new byte[bands][];
+        final long[] adlers = new long[bands];
+        final int[] lengths = new int[bands];
+        List<Callable<Object>> jobs = new ArrayList<Callable<Object>>(bands);
+        final int[] starts = new int[bands + 1];
+        for (int b = 0; b <= bands; b++) {
+            starts[b] = (int) ((long) h * b / bands);
+        }
+        // the filtered rows of every band; a band needs the dictionary of the
+        // band before it, so all bands are filtered first
+        final byte[][] filtered = new byte[bands][];
+        for (int b = 0; b < bands; b++) {
+            final int band = b;
+            jobs.add(new Callable<Object>() {
+
+                public Object call() {
+                    filtered[band] = filterRows(image, starts[band], starts[band + 1], bpp);
+                    return null;
+                }
+            });
+        }
+        PixelKernelTask.runParallel(jobs);
+
+        jobs.clear();
+        for (int b = 0; b < bands; b++) {
+            final int band = b;
+            jobs.add(new Callable<Object>() {
+
+                public Object call() {
+                    byte[] data = filtered[band];
+                    Adler32 adler = new Adler32();
+                    adler.update(data);
+                    adlers[band] = adler.getValue();
+                    lengths[band] = data.length;
+                    byte[] dict = null;
+                    if (band > 0) {
+                        byte[] prev = filtered[band - 1];
+                        int n = Math.min(WINDOW, prev.length);
+                        dict = new byte[n];
+                        System.arraycopy(prev, prev.length - n, dict, 0, n);
+                    }
+                    compressed[band] = deflate(data, dict, band == compressed.length - 1);
+                    return null;
+                }
+            });
+        }
+        PixelKernelTask.runParallel(jobs);
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        dos.write(SIGNATURE);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(w);
+        d.writeInt(h);
+        d.writeByte(8);
+        d.writeByte(alpha ? 6 : 2);
+        d.writeByte(0);
+        d.writeByte(0);
+        d.writeByte(0);
+        writeChunk(dos, "IHDR", ihdr.toByteArray(), 0, 13);
+
+        // the zlib header, then the bands, then the checksum of all of them
+        long adler = 1;
+        for (int b = 0; b < bands; b++) {
+            adler = combineAdler(adler, adlers[b], lengths[b]);
+        }
+        byte[] header = {0x78, (byte) (level <= 1 ? 0x01 : (level < 6 ? 0x5e : (level == 6 ? 0x9c : 0xda)))};
+        writeChunk(dos, "IDAT", header, 0, header.length);
+        for (int b = 0; b < bands; b++) {
+            writeChunk(dos, "IDAT", compressed[b], 0, compressed[b].length);
+        }
+        byte[] trailer = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+        writeChunk(dos, "IDAT", trailer, 0, trailer.length);
+        writeChunk(dos, "IEND", new byte[0], 0, 0);
+        dos.flush();
+    }
+
+    /**
+     * Returns the rows y0 to y1 of image as PNG scanlines, each starting with
+     * its filter type.
+     */
+    private static byte[] filterRows(BufferedImage image, int y0, int y1, int bpp) {
+        int w = image.getWidth();
+        int rowBytes = w * bpp;
+        byte[] out = new byte[(y1 - y0) * (rowBytes + 1)];
+        int[] argb = new int[w];
+        byte[] prior = new byte[rowBytes];
+        byte[] raw = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+        if (y0 > 0) {
+            unpackRow(image, y0 - 1, argb, prior, bpp);
+        }
+        int pos = 0;
+        for (int y = y0; y < y1; y++) {
+            unpackRow(image, y, argb, raw, bpp);
+            long[] sums = filter(raw, prior, candidates, bpp);
+            int best = 0;
+            for (int type = 1; type < 5; type++) {
+                if (sums[type] < sums[best]) {
+                    best = type;
+                }
+            }
+            out[pos++] = (byte) best;
+            System.arraycopy(candidates[best], 0, out, pos, rowBytes);
+            pos += rowBytes;
+            byte[] t = prior;
+            prior = raw;
+            raw = t;
+        }
+        return out;
+    }
+
+    private static void unpackRow(BufferedImage image, int y, int[] argb, byte[] row, int bpp) {
+        int w = argb.length;
+        if (ImageFilterTask.isIntPacked(image)) {
+            image.getRaster().getDataElements(0, y, w, 1, argb);
+            if (bpp == 3) {
+                // TYPE_INT_RGB may hold anything in its top byte
+                for (int x = 0; x < w; x++) {
+                    argb[x] |= 0xff000000;
+                }
+            }
+        } else {
+            image.getRGB(0, y, w, 1, argb, 0, w);
+        }
+        int i = 0;
+        for (int x = 0; x < w; x++) {
+            int c = argb[x];
+            row[i++] = (byte) (c >> 16);
+            row[i++] = (byte) (c >> 8);
+            row[i++] = (byte) c;
+            if (bpp == 4) {
+                row[i++] = (byte) (c >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Applies all five PNG filters to raw, in one pass, and returns the sum
+     * of the absolute values of each result, as signed bytes.
+     */
+    private static long[] filter(byte[] raw, byte[] prior, byte[][] out, int bpp) {
+        byte[] none = out[0];
+        byte[] sub = out[1];
+        byte[] up = out[2];
+        byte[] avg = out[3];
+        byte[] paeth = out[4];
+        int sNone = 0, sSub = 0, sUp = 0, sAvg = 0, sPaeth = 0;
+        int n = raw.length;
+        // the first pixel has no left neighbour, so a and c are 0
+        for (int i = 0; i < bpp; i++) {
+            int x = raw[i] & 0xff;
+            int b = prior[i] & 0xff;
+            none[i] = (byte) x;
+            sub[i] = (byte) x;
+            up[i] = (byte) (x - b);
+            avg[i] = (byte) (x - (b >>> 1));
+            paeth[i] = (byte) (x - b);
+            sNone += Math.abs((byte) x);
+            sSub += Math.abs((byte) x);
+            sUp += Math.abs((byte) (x - b));
+            sAvg += Math.abs((byte) (x - (b >>> 1)));
+            sPaeth += Math.abs((byte) (x - b));
+        }
+        for (int i = bpp; i < n; i++) {
+            int x = raw[i] & 0xff;
+            int a = raw[i - bpp] & 0xff;
+            int b = prior[i] & 0xff;
+            int c = prior[i - bpp] & 0xff;
+            int pa = Math.abs(b - c);
+            int pb = Math.abs(a - c);
+            int pc = Math.abs(a + b - 2 * c);
+            int p = pa <= pb && pa <= pc ? a : (pb <= pc ? b : c);
+            int v0 = (byte) x;
+            int v1 = (byte) (x - a);
+            int v2 = (byte) (x - b);
+            int v3 = (byte) (x - ((a + b) >>> 1));
+            int v4 = (byte) (x - p);
+            none[i] = (byte) v0;
+            sub[i] = (byte) v1;
+            up[i] = (byte) v2;
+            avg[i] = (byte) v3;
+            paeth[i] = (byte) v4;
+            sNone += Math.abs(v0);
+            sSub += Math.abs(v1);
+            sUp += Math.abs(v2);
+            sAvg += Math.abs(v3);
+            sPaeth += Math.abs(v4);
+        }
+        return new long[]{sNone, sSub, sUp, sAvg, sPaeth};
+    }
+
+    /**
+     * Deflates data without a zlib header, ending with a sync flush, or with
+     * the final block if last is true.
+     */
+    private byte[] deflate(byte[] data, byte[] dict, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(data);
+            if (last) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buf = new byte[64 * 1024];
+            while (true) {
+                int n = deflater.deflate(buf, 0, buf.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                bos.write(buf, 0, n);
+                if (last ? deflater.finished() : (n < buf.length && deflater.needsInput())) {
+                    break;
+                }
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the Adler-32 of two pieces of data from the checksums of each.
+     */
+    static long combineAdler(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int off, int len)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, off, len);
+        out.writeInt(len);
+        out.write(typeBytes);
+        out.write(data, off, len);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A filter that is written as a kernel computing one pixel at a time. The
+ * image is split into tiles, which are computed in parallel. The kernel always
+ * reads the image as it was before the filter started, and the new pixels are
+ * stored when all tiles are done, so the result is the same as in a serial run.
+ * <p>
+ * The tiles, and the bands of the other parallel operations, run on a shared
+ * ForkJoinPool. The list of jobs is split in halves until one job is left, so
+ * idle threads steal the remaining halves, and an operation that is started
+ * from within a job does not wait for a thread it is holding.
+ *
+ * @author agent
+ */
+public abstract class PixelKernelTask extends ImageFilterTask {
+
+    public static final int TILE_SIZE = 64;
+    // the number of threads that compute tiles, set with -Dimagecoder.computeThreads
+    private static int poolSize = Integer.getInteger("imagecoder.computeThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static ForkJoinPool pool;
+    private boolean parallel = true;
+    // the pixels read and written by the tile of this task that a thread is
+    // computing, if COUNT_PIXELS is true, and null outside of such a tile;
+    // the tiles are added up when all are done
+    private final ThreadLocal<long[]> tileCounts = new ThreadLocal<long[]>();
+    private int tilesDone;
+    // the rows to compute, or -1 for all rows
+    private int rowStart = -1;
+    private int rowEnd = -1;
+
+    /**
+     * Computes the new color of the pixel at x, y. This must be overridden in
+     * subclasses to implement a filter.
+     * @param x the x coordinate of the pixel
+     * @param y the y coordinate of the pixel
+     * @return the new color of the pixel
+     */
+    protected abstract int pixel(int x, int y);
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Applies this filter to the rows y0 to y1 of a larger image, in the
+     * calling thread. strip holds the rows originY and below of the whole
+     * image, and must include the rows that pixel(x, y) reads around y0..y1.
+     * @param strip the strip of the image that holds rows y0 to y1
+     * @param originY the row of the whole image that is the first row of strip
+     * @param totalHeight the height of the whole image
+     * @param y0 the first row to compute
+     * @param y1 the row after the last row to compute
+     */
+    public void filterRows(BufferedImage strip, int originY, int totalHeight, int y0, int y1) {
+        setImage(strip, originY, totalHeight);
+        rowStart = y0;
+        rowEnd = y1;
+        try {
+            runFilter();
+            finishImage();
+        } finally {
+            rowStart = -1;
+            rowEnd = -1;
+        }
+    }
+
+    /**
+     * Applies pixel(x, y) to every pixel of the image, one tile per job.
+     */
+    @Override
+    protected void filter() {
+        final int w = getWidth();
+        final int top = rowStart < 0 ? 0 : rowStart;
+        final int h = (rowEnd < 0 ? getHeight() : rowEnd) - top;
+        final int[] out = new int[w * h];
+        final int tilesX = (w + TILE_SIZE - 1) / TILE_SIZE;
+        final int tilesY = (h + TILE_SIZE - 1) / TILE_SIZE;
+        final int tiles = tilesX * tilesY;
+        tilesDone = 0;
+        final long[] tileReads = COUNT_PIXELS ? new long[tiles] : null;
+        final long[] tileWrites = COUNT_PIXELS ? new long[tiles] : null;
+
+        List<Callable<Object>> jobs = new ArrayList<Callable<Object>>(tiles);
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                final int x0 = tx * TILE_SIZE;
+                final int y0 = ty * TILE_SIZE;
+                final int tile = jobs.size();
+                jobs.add(new Callable<Object>() {
+
+                    public Object call() {
+                        if (!COUNT_PIXELS) {
+                            computeTile(out, w, top, x0, y0,
+                                    Math.min(x0 + TILE_SIZE, w), Math.min(y0 + TILE_SIZE, h));
+                        } else {
+                            long[] counts = new long[2];
+                            tileCounts.set(counts);
+                            try {
+                                computeTile(out, w, top, x0, y0,
+                                        Math.min(x0 + TILE_SIZE, w), Math.min(y0 + TILE_SIZE, h));
+                            } finally {
+                                tileCounts.remove();
+                            }
+                            tileReads[tile] = counts[0];
+                            tileWrites[tile] = counts[1];
+                        }
+                        tileDone(tiles);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        if (parallel) {
+            runParallel(jobs);
+        } else {
+            for (Callable<Object> job : jobs) {
+                try {
+                    job.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        for (int y = 0; y < h; y++) {
+            int src = y * w;
+            int dst = pixelOffset + (top + y) * scanlineStride;
+            for (int x = 0; x < w; x++) {
+                pixels[dst + x] = out[src + x] & writeMask;
+            }
+        }
+        markDirty(0, top, w, h);
+
+        if (COUNT_PIXELS) {
+            // all tiles are done, so their counts are visible here
+            for (int i = 0; i < tiles; i++) {
+                pixelsRead += tileReads[i];
+                pixelsWritten += tileWrites[i];
+            }
+            pixelsWritten += (long) w * h;
+        }
+    }
+
+    /**
+     * Counts the reads of pixel(x, y) in the tile the calling thread is
+     * computing, so the threads do not share a counter. Reads outside of a
+     * tile are counted as usual.
+     */
+    @Override
+    protected void countReads(long n) {
+        long[] counts = tileCounts.get();
+        if (counts != null) {
+            counts[0] += n;
+        } else {
+            super.countReads(n);
+        }
+    }
+
+    @Override
+    protected void countWrites(long n) {
+        long[] counts = tileCounts.get();
+        if (counts != null) {
+            counts[1] += n;
+        } else {
+            super.countWrites(n);
+        }
+    }
+
+    private void computeTile(int[] out, int w, int top, int x0, int y0, int x1, int y1) {
+        for (int y = y0; y < y1; y++) {
+            checkCancelled();
+            int i = y * w + x0;
+            for (int x = x0; x < x1; x++) {
+                out[i++] = pixel(x, top + y);
+            }
+        }
+    }
+
+    private synchronized void tileDone(int tiles) {
+        setProgress(++tilesDone, tiles);
+    }
+
+    /**
+     * Runs jobs on the kernel threads, and returns when all are done. If a
+     * job fails, the first exception is thrown when the others are done too.
+     */
+    static void runParallel(List<Callable<Object>> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        try {
+            getPool().invoke(new Jobs(jobs, 0, jobs.size()));
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        } catch (Error e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Returns the exception a job threw. Whenever it passes to another
+     * thread, the pool wraps it in a new exception of the same class, whose
+     * message is the cause, or which has no message if the class has no
+     * constructor that takes a cause.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T unwrap(T e) {
+        Throwable cause = e.getCause();
+        while (cause != null && cause.getClass() == e.getClass()
+                && (e.getMessage() == null || cause.toString().equals(e.getMessage()))) {
+            e = (T) cause;
+            cause = e.getCause();
+        }
+        return e;
+    }
+
+    public static synchronized int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Sets the number of threads that compute the tiles of all kernels. The
+     * jobs that are running finish on the old threads.
+     * @param threads the number of threads, at least 1
+     */
+    public static synchronized void setPoolSize(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        if (threads != poolSize && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        poolSize = threads;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, poolSize), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+                private int count = 0;
+
+                public synchronized ForkJoinWorkerThread newThread(ForkJoinPool p) {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    t.setName("ImageCoder-kernel-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * Runs the jobs from index from to to, by splitting them in halves.
+     */
+    private static class Jobs extends RecursiveAction {
+
+        private final List<Callable<Object>> jobs;
+        private final int from;
+        private final int to;
+
+        Jobs(List<Callable<Object>> jobs, int from, int to) {
+            this.jobs = jobs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    jobs.get(from).call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            Jobs first = new Jobs(jobs, from, mid);
+            first.fork();
+            try {
+                new Jobs(jobs, mid, to).compute();
+            } catch (RuntimeException e) {
+                // no job may still run when runParallel() returns
+                first.quietlyJoin();
+                throw e;
+            } catch (Error e) {
+                first.quietlyJoin();
+                throw e;
+            }
+            first.join();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+/**
+ * Operations that change every pixel by its own value only, on packed ARGB
+ * pixels in place. The pixels are given as an array, the index of the first
+ * pixel, and the distance between rows, like the raster of an image. Alpha is
+ * left as it is.
+ * <p>
+ * The rows are split in bands that run on the threads of PixelKernelTask.
+ * Each row is processed by Rows. When the JVM is started with
+ * --add-modules jdk.incubator.vector, and the build compiled src-vector,
+ * which needs JDK 16 or later, VectorRows is loaded instead: it processes a
+ * row with the incubator Vector API, a full SIMD register at a time. The
+ * project itself stays at Java 7, so VectorRows is only loaded by name, and
+ * if it cannot be loaded the scalar loops of Rows are used. Those are
+ * written in integer arithmetic without calls or branches, so the JIT
+ * compiler may vectorize them too. The Vector API is not used if the system
+ * property imagecoder.vector is false.
+ *
+ * @author agent
+ */
+public class PointOps {
+
+    private static final Rows SCALAR = new Rows();
+    private static final Rows VECTOR = loadVectorRows();
+    private static volatile Rows rows = VECTOR != null
+            && !"false".equals(System.getProperty("imagecoder.vector")) ? VECTOR : SCALAR;
+
+    private PointOps() {
+    }
+
+    /**
+     * Returns true if the operations use the Vector API.
+     * @return true if the operations use the Vector API
+     */
+    public static boolean isVectorized() {
+        return rows == VECTOR;
+    }
+
+    /**
+     * Makes the operations use the Vector API or not, to compare both.
+     * @param vectorized true to use the Vector API if it is available
+     * @return true if the operations use the Vector API now
+     */
+    public static boolean setVectorized(boolean vectorized) {
+        rows = vectorized && VECTOR != null ? VECTOR : SCALAR;
+        return isVectorized();
+    }
+
+    private static Rows loadVectorRows() {
+        try {
+            return (Rows) Class.forName("imagecoder.VectorRows").newInstance();
+        } catch (Throwable e) {
+            // not compiled, or the jdk.incubator.vector module is missing
+            return null;
+        }
+    }
+
+    /**
+     * Replaces every pixel by the grey of the mean of its red, green and
+     * blue, rounded down, like the greyscale example of Image Coder.
+     */
+    public static void greyscale(final int[] pixels, final int offset, final int stride,
+            final int w, final int h) {
+        final Rows r = rows;
+        Convolution.forEachBand(h, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int i = offset + y * stride;
+                    r.greyscale(pixels, i, i + w);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces every pixel by the grey of its luminance, with the weights of
+     * ITU-R BT.601.
+     */
+    public static void luminance(final int[] pixels, final int offset, final int stride,
+            final int w, final int h) {
+        final Rows r = rows;
+        Convolution.forEachBand(h, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int i = offset + y * stride;
+                    r.luminance(pixels, i, i + w);
+                }
+            }
+        });
+    }
+
+    /**
+     * Changes the brightness and contrast of every pixel: each channel value
+     * v becomes (v - 128) * contrast + 128 + brightness, limited to 0 to 255.
+     * @param brightness the value added, from -255 to 255
+     * @param contrast the factor, from 0 to 255
+     */
+    public static void brightnessContrast(final int[] pixels, final int offset, final int stride,
+            final int w, final int h, int brightness, double contrast) {
+        // the factor in 1/256 units; the offset includes rounding
+        final int f = (int) Math.round(Math.max(0, Math.min(255, contrast)) * 256);
+        final int add = ((128 + Math.max(-255, Math.min(255, brightness))) << 8) + 128 - 128 * f;
+        final Rows r = rows;
+        Convolution.forEachBand(h, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int i = offset + y * stride;
+                    r.brightnessContrast(pixels, i, i + w, f, add);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the red, green and blue of every pixel by 255 minus them.
+     */
+    public static void invert(final int[] pixels, final int offset, final int stride,
+            final int w, final int h) {
+        final Rows r = rows;
+        Convolution.forEachBand(h, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int i = offset + y * stride;
+                    r.invert(pixels, i, i + w);
+                }
+            }
+        });
+    }
+
+    /**
+     * Swaps the red and blue of every pixel, which converts RGB to BGR.
+     */
+    public static void swapRedBlue(final int[] pixels, final int offset, final int stride,
+            final int w, final int h) {
+        final Rows r = rows;
+        Convolution.forEachBand(h, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int i = offset + y * stride;
+                    r.swapRedBlue(pixels, i, i + w);
+                }
+            }
+        });
+    }
+
+    /**
+     * Mixes the red, green and blue of src into those of pixels, as
+     * pixels * (1 - opacity) + src * opacity.
+     * @param src the pixels to mix in, w by h of them, row by row without padding
+     * @param opacity the weight of src, from 0 to 1
+     */
+    public static void blend(final int[] pixels, final int offset, final int stride,
+            final int w, final int h, final int[] src, double opacity) {
+        // the weight in 1/256 units, for two channels at a time
+        final int a = (int) Math.round(Math.max(0, Math.min(1, opacity)) * 256);
+        final Rows r = rows;
+        Convolution.forEachBand(h, new Convolution.Band() {
+
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int i = offset + y * stride;
+                    r.blend(pixels, i, i + w, src, y * w, a);
+                }
+            }
+        });
+    }
+
+    /**
+     * The operations on the pixels from start to end of one row, as scalar
+     * loops. VectorRows overrides them, and calls them for the pixels at
+     * the end of a row that do not fill a vector.
+     */
+    static class Rows {
+
+        void greyscale(int[] pixels, int start, int end) {
+            for (int i = start; i < end; i++) {
+                int c = pixels[i];
+                int sum = ((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff);
+                // sum / 3 for sums up to 765
+                int v = (sum * 21846) >>> 16;
+                pixels[i] = (c & 0xff000000) | v << 16 | v << 8 | v;
+            }
+        }
+
+        void luminance(int[] pixels, int start, int end) {
+            for (int i = start; i < end; i++) {
+                int c = pixels[i];
+                // 0.299, 0.587 and 0.114 in 1/256 units, rounded
+                int v = (77 * ((c >> 16) & 0xff) + 150 * ((c >> 8) & 0xff) + 29 * (c & 0xff) + 128) >>> 8;
+                pixels[i] = (c & 0xff000000) | v << 16 | v << 8 | v;
+            }
+        }
+
+        void brightnessContrast(int[] pixels, int start, int end, int f, int add) {
+            for (int i = start; i < end; i++) {
+                int c = pixels[i];
+                int r = Math.min(255, Math.max(0, (((c >> 16) & 0xff) * f + add) >> 8));
+                int g = Math.min(255, Math.max(0, (((c >> 8) & 0xff) * f + add) >> 8));
+                int b = Math.min(255, Math.max(0, ((c & 0xff) * f + add) >> 8));
+                pixels[i] = (c & 0xff000000) | r << 16 | g << 8 | b;
+            }
+        }
+
+        void invert(int[] pixels, int start, int end) {
+            for (int i = start; i < end; i++) {
+                pixels[i] ^= 0x00ffffff;
+            }
+        }
+
+        void swapRedBlue(int[] pixels, int start, int end) {
+            for (int i = start; i < end; i++) {
+                int c = pixels[i];
+                pixels[i] = (c & 0xff00ff00) | ((c >> 16) & 0xff) | (c & 0xff) << 16;
+            }
+        }
+
+        void blend(int[] pixels, int start, int end, int[] src, int srcStart, int a) {
+            for (int i = start, s = srcStart; i < end; i++, s++) {
+                int c = pixels[i];
+                int d = src[s];
+                int rb = c & 0x00ff00ff;
+                int g = c & 0x0000ff00;
+                rb = (rb + ((((d & 0x00ff00ff) - rb) * a) >> 8)) & 0x00ff00ff;
+                g = (g + ((((d & 0x0000ff00) - g) * a) >> 8)) & 0x0000ff00;
+                pixels[i] = (c & 0xff000000) | rb | g;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+/**
+ * The measurements of one render: how long it waited in the RenderScheduler,
+ * how long compiling, storing the undo copy and filtering took, how many
+ * pixels the filter accessed, and how often the image view was painted.
+ *
+ * @author agent
+ */
+public class RenderMetrics {
+
+    private final long startTime = System.currentTimeMillis();
+    private String code;
+    private boolean kernelMode;
+    private boolean cancelled;
+    private long queueWaitNanos;
+    private long compileNanos;
+    private long copyNanos;
+    private long filterNanos;
+    private long pixelsRead = -1;
+    private long pixelsWritten = -1;
+    private int repaints;
+
+    /**
+     * Returns the time the render was started.
+     * @return the time in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public boolean isKernelMode() {
+        return kernelMode;
+    }
+
+    public void setKernelMode(boolean kernelMode) {
+        this.kernelMode = kernelMode;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    public long getQueueWaitNanos() {
+        return queueWaitNanos;
+    }
+
+    public void setQueueWaitNanos(long queueWaitNanos) {
+        this.queueWaitNanos = queueWaitNanos;
+    }
+
+    public long getCompileNanos() {
+        return compileNanos;
+    }
+
+    public void setCompileNanos(long compileNanos) {
+        this.compileNanos = compileNanos;
+    }
+
+    public long getCopyNanos() {
+        return copyNanos;
+    }
+
+    public void setCopyNanos(long copyNanos) {
+        this.copyNanos = copyNanos;
+    }
+
+    public long getFilterNanos() {
+        return filterNanos;
+    }
+
+    public void setFilterNanos(long filterNanos) {
+        this.filterNanos = filterNanos;
+    }
+
+    /**
+     * Returns the number of pixels the filter read, or -1 if they were not
+     * counted; see ImageFilterTask.COUNT_PIXELS.
+     * @return the number of pixels read
+     */
+    public long getPixelsRead() {
+        return pixelsRead;
+    }
+
+    public void setPixelsRead(long pixelsRead) {
+        this.pixelsRead = pixelsRead;
+    }
+
+    /**
+     * Returns the number of pixels the filter wrote, or -1 if they were not
+     * counted.
+     * @return the number of pixels written
+     */
+    public long getPixelsWritten() {
+        return pixelsWritten;
+    }
+
+    public void setPixelsWritten(long pixelsWritten) {
+        this.pixelsWritten = pixelsWritten;
+    }
+
+    /**
+     * Returns the number of times the image view was painted while the
+     * filter ran.
+     * @return the number of repaints
+     */
+    public int getRepaints() {
+        return repaints;
+    }
+
+    public void setRepaints(int repaints) {
+        this.repaints = repaints;
+    }
+
+    @Override
+    public String toString() {
+        return "waited " + millis(queueWaitNanos) + " ms, compiled in " + millis(compileNanos)
+                + " ms, copied in " + millis(copyNanos) + " ms, filtered in " + millis(filterNanos) + " ms";
+    }
+
+    static long millis(long nanos) {
+        return nanos / 1000000L;
+    }
+}
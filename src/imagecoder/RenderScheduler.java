@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs renders one at a time on a single named thread. At most one render
+ * waits while another one runs: submitting a render while one is already
+ * waiting replaces the waiting one, so only the latest request is rendered.
+ * A job should return only when its render is completely done, so renders
+ * can never overlap.
+ *
+ * @author agent
+ */
+public class RenderScheduler {
+
+    /**
+     * A render that is run by the scheduler.
+     */
+    public interface Job {
+
+        /**
+         * Performs the render.
+         * @param metrics the timings of this render, with the queue wait filled in
+         */
+        void run(RenderMetrics metrics);
+    }
+    private final ThreadPoolExecutor executor;
+    private volatile RenderMetrics lastMetrics;
+    private int dropped;
+
+    /**
+     * Creates a scheduler.
+     * @param name the name of its thread
+     */
+    public RenderScheduler(final String name) {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(1),
+                new ThreadFactory() {
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        if (e.isShutdown()) {
+                            return;
+                        }
+                        // the queue is full: the latest render wins
+                        if (e.getQueue().poll() != null) {
+                            droppedOne();
+                        }
+                        e.execute(r);
+                    }
+                });
+    }
+
+    /**
+     * Runs job after the current render, replacing the render that is
+     * waiting, if any.
+     * @param job the render
+     */
+    public void submit(final Job job) {
+        final long submitted = System.nanoTime();
+        executor.execute(new Runnable() {
+
+            public void run() {
+                RenderMetrics metrics = new RenderMetrics();
+                metrics.setQueueWaitNanos(System.nanoTime() - submitted);
+                try {
+                    job.run(metrics);
+                } finally {
+                    lastMetrics = metrics;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the metrics of the last render that finished.
+     * @return the metrics, or null if no render finished yet
+     */
+    public RenderMetrics getLastMetrics() {
+        return lastMetrics;
+    }
+
+    /**
+     * Returns the number of renders that were replaced by a later one
+     * before they started.
+     * @return the number of dropped renders
+     */
+    public synchronized int getDroppedCount() {
+        return dropped;
+    }
+
+    private synchronized void droppedOne() {
+        dropped++;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
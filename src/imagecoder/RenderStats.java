@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import javax.management.*;
+
+/**
+ * Collects the RenderMetrics of all renders. The totals and the last render
+ * can be read over JMX as imagecoder:type=RenderStats, for example with
+ * jconsole. If a CSV file is set, every render is appended to it as one line,
+ * so slow snippets can be found afterwards.
+ *
+ * @author agent
+ */
+public class RenderStats implements RenderStatsMBean {
+
+    public static final String OBJECT_NAME = "imagecoder:type=RenderStats";
+    static final String CSV_HEADER = "start,mode,cancelled,queueWaitMs,compileMs,copyMs,filterMs,"
+            + "pixelsRead,pixelsWritten,repaints,code";
+    private final FilterCompiler compiler;
+    private final RenderScheduler scheduler;
+    private File csvFile;
+    private RenderMetrics last;
+    private int renderCount;
+    private int cancelledCount;
+    private long totalFilterNanos;
+    private long totalPixelsRead;
+    private long totalPixelsWritten;
+
+    /**
+     * Creates the statistics of renders that use compiler and scheduler.
+     * @param compiler the compiler, for its cache statistics, or null
+     * @param scheduler the scheduler, for the number of dropped renders, or null
+     */
+    public RenderStats(FilterCompiler compiler, RenderScheduler scheduler) {
+        this.compiler = compiler;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Registers this object with the platform MBean server.
+     * @throws JMException if it could not be registered
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Adds the metrics of one render.
+     * @param metrics the metrics
+     * @throws IOException if the CSV file could not be written
+     */
+    public void record(RenderMetrics metrics) throws IOException {
+        File file;
+        synchronized (this) {
+            last = metrics;
+            renderCount++;
+            if (metrics.isCancelled()) {
+                cancelledCount++;
+            }
+            totalFilterNanos += metrics.getFilterNanos();
+            totalPixelsRead += Math.max(0, metrics.getPixelsRead());
+            totalPixelsWritten += Math.max(0, metrics.getPixelsWritten());
+            file = csvFile;
+        }
+        if (file != null) {
+            appendCsv(file, metrics);
+        }
+    }
+
+    private static synchronized void appendCsv(File file, RenderMetrics m) throws IOException {
+        boolean header = !file.exists() || file.length() == 0;
+        Writer w = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        try {
+            if (header) {
+                w.write(CSV_HEADER + "\n");
+            }
+            w.write(m.getStartTime() + "," + (m.isKernelMode() ? "pixel" : "filter") + ","
+                    + m.isCancelled() + "," + format(m.getQueueWaitNanos()) + ","
+                    + format(m.getCompileNanos()) + "," + format(m.getCopyNanos()) + ","
+                    + format(m.getFilterNanos()) + "," + m.getPixelsRead() + ","
+                    + m.getPixelsWritten() + "," + m.getRepaints() + ","
+                    + quote(m.getCode() == null ? "" : FilterCompiler.normalize(m.getCode())) + "\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    private static String format(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Sets the file every render is appended to.
+     * @param file the CSV file, or null to stop writing it
+     */
+    public synchronized void setCsvFile(File file) {
+        csvFile = file;
+    }
+
+    public synchronized RenderMetrics getLast() {
+        return last;
+    }
+
+    public synchronized int getRenderCount() {
+        return renderCount;
+    }
+
+    public synchronized int getCancelledCount() {
+        return cancelledCount;
+    }
+
+    public int getDroppedCount() {
+        return scheduler == null ? 0 : scheduler.getDroppedCount();
+    }
+
+    public long getCompileCacheHits() {
+        return compiler == null ? 0 : compiler.getHits();
+    }
+
+    public long getCompileCacheMisses() {
+        return compiler == null ? 0 : compiler.getMisses();
+    }
+
+    public synchronized double getLastQueueWaitMillis() {
+        return last == null ? 0 : last.getQueueWaitNanos() / 1e6;
+    }
+
+    public synchronized double getLastCompileMillis() {
+        return last == null ? 0 : last.getCompileNanos() / 1e6;
+    }
+
+    public synchronized double getLastCopyMillis() {
+        return last == null ? 0 : last.getCopyNanos() / 1e6;
+    }
+
+    public synchronized double getLastFilterMillis() {
+        return last == null ? 0 : last.getFilterNanos() / 1e6;
+    }
+
+    public synchronized long getLastPixelsRead() {
+        return last == null ? 0 : last.getPixelsRead();
+    }
+
+    public synchronized long getLastPixelsWritten() {
+        return last == null ? 0 : last.getPixelsWritten();
+    }
+
+    public synchronized int getLastRepaints() {
+        return last == null ? 0 : last.getRepaints();
+    }
+
+    public synchronized double getTotalFilterMillis() {
+        return totalFilterNanos / 1e6;
+    }
+
+    public synchronized long getTotalPixelsRead() {
+        return totalPixelsRead;
+    }
+
+    public synchronized long getTotalPixelsWritten() {
+        return totalPixelsWritten;
+    }
+
+    public synchronized String getCsvFile() {
+        return csvFile == null ? null : csvFile.getPath();
+    }
+
+    public synchronized void reset() {
+        last = null;
+        renderCount = 0;
+        cancelledCount = 0;
+        totalFilterNanos = 0;
+        totalPixelsRead = 0;
+        totalPixelsWritten = 0;
+    }
+}
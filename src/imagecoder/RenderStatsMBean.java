@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+/**
+ * The management interface of RenderStats. Times are in milliseconds.
+ *
+ * @author agent
+ */
+public interface RenderStatsMBean {
+
+    int getRenderCount();
+
+    int getCancelledCount();
+
+    int getDroppedCount();
+
+    long getCompileCacheHits();
+
+    long getCompileCacheMisses();
+
+    double getLastQueueWaitMillis();
+
+    double getLastCompileMillis();
+
+    double getLastCopyMillis();
+
+    double getLastFilterMillis();
+
+    long getLastPixelsRead();
+
+    long getLastPixelsWritten();
+
+    int getLastRepaints();
+
+    double getTotalFilterMillis();
+
+    long getTotalPixelsRead();
+
+    long getTotalPixelsWritten();
+
+    String getCsvFile();
+
+    void reset();
+}
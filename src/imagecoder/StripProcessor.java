@@ -0,0 +1,310 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Applies a per-pixel kernel to an image that does not have to fit in memory.
+ * The image is read in horizontal strips through source regions of an
+ * ImageReader. Each strip is read with a halo of extra rows above and below,
+ * so a kernel that reads at most halo rows away from its pixel computes the
+ * same result as on the whole image. The result is handed to the ImageWriter
+ * as a RenderedImage whose strips are computed when the writer asks for them.
+ * <p>
+ * Peak memory depends on the strip height, not on the image size, if the
+ * writer fetches the image row by row or strip by strip, as the PNG and TIFF
+ * writers do. Readers for formats that store rows in independent strips or
+ * tiles, such as TIFF and BMP, read each source region directly; others may
+ * decode from the start of the image for every strip.
+ *
+ * @author agent
+ */
+public class StripProcessor {
+
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+    private final FilterCompiler compiler;
+    private final String code;
+    private final int halo;
+    private final int stripHeight;
+    private volatile long timeLimit;
+    private volatile boolean cancelled;
+    // the kernels that are running, so cancel() can stop them
+    private final Set<PixelKernelTask> running =
+            Collections.newSetFromMap(new ConcurrentHashMap<PixelKernelTask, Boolean>());
+
+    /**
+     * Creates a strip processor and compiles code.
+     * @param compiler the compiler to use
+     * @param code the body of pixel(x, y)
+     * @param halo the number of rows above and below a pixel that the kernel reads
+     * @param stripHeight the number of rows computed at a time
+     * @throws Exception if code cannot be compiled
+     */
+    public StripProcessor(FilterCompiler compiler, String code, int halo, int stripHeight) throws Exception {
+        if (halo < 0 || stripHeight < 1) {
+            throw new IllegalArgumentException("halo must be >= 0 and stripHeight >= 1");
+        }
+        this.compiler = compiler;
+        this.code = code;
+        this.halo = halo;
+        this.stripHeight = stripHeight;
+        compiler.compile(code, true);
+    }
+
+    public long getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * Sets the time the kernel may take per strip.
+     * @param millis the time limit in milliseconds, or 0 for no limit
+     */
+    public void setTimeLimit(long millis) {
+        timeLimit = millis;
+    }
+
+    /**
+     * Stops the strips that are being computed, and makes every strip after
+     * that fail with a CancellationException.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (PixelKernelTask task : running) {
+            task.requestCancel();
+        }
+    }
+
+    /**
+     * Filters input and writes the result to output.
+     * @param input the image file to read
+     * @param output the image file to write
+     * @param format the informal name of the output format, such as png
+     * @throws Exception if the image could not be read, filtered or written
+     */
+    public void process(File input, File output, String format) throws Exception {
+        ImageInputStream iis = ImageIO.createImageInputStream(input);
+        if (iis == null) {
+            throw new IOException("Cannot open " + input);
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Cannot read this type of image.");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                StripImage image = new StripImage(reader);
+                if (!ImageIO.write(image, format, output)) {
+                    throw new IOException("This file type (" + format + ") is not supported by your Java system.");
+                }
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * The filtered image. Strips are computed on demand, and only the last
+     * computed strip is kept.
+     */
+    private class StripImage implements RenderedImage {
+
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+        private int cachedStrip = -1;
+        private Raster cachedTile;
+
+        StripImage(ImageReader reader) throws IOException {
+            this.reader = reader;
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            boolean alpha = reader.getImageTypes(0).next().getColorModel().hasAlpha();
+            colorModel = new BufferedImage(1, 1, alpha ? BufferedImage.TYPE_INT_ARGB
+                    : BufferedImage.TYPE_INT_RGB).getColorModel();
+            sampleModel = colorModel.createCompatibleSampleModel(width, stripHeight);
+        }
+
+        public synchronized Raster getTile(int tileX, int tileY) {
+            if (tileY != cachedStrip) {
+                try {
+                    cachedTile = computeStrip(tileY);
+                    cachedStrip = tileY;
+                } catch (IOException e) {
+                    throw new RuntimeException("Error while reading strip " + tileY, e);
+                }
+            }
+            return cachedTile;
+        }
+
+        private Raster computeStrip(int strip) throws IOException {
+            int y0 = strip * stripHeight;
+            int y1 = Math.min(y0 + stripHeight, height);
+            int readY0 = Math.max(0, y0 - halo);
+            int readY1 = Math.min(height, y1 + halo);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, readY0, width, readY1 - readY0));
+            BufferedImage src = reader.read(0, param);
+            if (!ImageFilterTask.isIntPacked(src) || src.getColorModel().hasAlpha() != colorModel.hasAlpha()) {
+                src = convert(src);
+            }
+
+            PixelKernelTask task;
+            try {
+                task = (PixelKernelTask) compiler.compile(code, true);
+            } catch (Exception e) {
+                throw new IllegalStateException("Snippet no longer compiles", e);
+            }
+            task.setTimeLimit(timeLimit);
+            running.add(task);
+            try {
+                // cancel() may have missed the task
+                if (cancelled) {
+                    task.requestCancel();
+                }
+                task.filterRows(src, readY0, height, y0, y1);
+            } finally {
+                running.remove(task);
+            }
+
+            return src.getRaster().createChild(0, y0 - readY0, width, y1 - y0, 0, y0, null);
+        }
+
+        private BufferedImage convert(BufferedImage src) {
+            WritableRaster raster = colorModel.createCompatibleWritableRaster(src.getWidth(), src.getHeight());
+            BufferedImage dst = new BufferedImage(colorModel, raster, false, null);
+            java.awt.Graphics2D g2d = dst.createGraphics();
+            g2d.drawImage(src, 0, 0, null);
+            g2d.dispose();
+            return dst;
+        }
+
+        public Raster getData(Rectangle rect) {
+            WritableRaster dst = Raster.createWritableRaster(
+                    sampleModel.createCompatibleSampleModel(rect.width, rect.height),
+                    new Point(rect.x, rect.y));
+            copyData(dst);
+            return dst;
+        }
+
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            }
+            Rectangle rect = raster.getBounds();
+            int first = Math.max(0, rect.y / stripHeight);
+            int last = Math.min(getNumYTiles() - 1, (rect.y + rect.height - 1) / stripHeight);
+            for (int strip = first; strip <= last; strip++) {
+                Raster tile = getTile(0, strip);
+                Rectangle r = rect.intersection(tile.getBounds());
+                if (!r.isEmpty()) {
+                    raster.setRect(tile.createChild(r.x, r.y, r.width, r.height, r.x, r.y, null));
+                }
+            }
+            return raster;
+        }
+
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getMinX() {
+            return 0;
+        }
+
+        public int getMinY() {
+            return 0;
+        }
+
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        public int getNumYTiles() {
+            return (height + stripHeight - 1) / stripHeight;
+        }
+
+        public int getMinTileX() {
+            return 0;
+        }
+
+        public int getMinTileY() {
+            return 0;
+        }
+
+        public int getTileWidth() {
+            return width;
+        }
+
+        public int getTileHeight() {
+            return stripHeight;
+        }
+
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package imagecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Future;
+import util.ImageFileChooser;
+
+/**
+ * A list of image files that are opened one at a time. Whenever a file is
+ * selected, the next few files are read into the cache of the loader in the
+ * background, so stepping through the list does not wait for decoding.
+ *
+ * @author agent
+ */
+public class Workspace {
+
+    // the number of files after the selected one that are read ahead, set
+    // with -Dimagecoder.prefetch
+    public static final int PREFETCH = Math.max(0, Integer.getInteger("imagecoder.prefetch", 3));
+    private final List<File> files;
+    private final ImageLoader loader;
+    private int index = -1;
+    // the files being read ahead
+    private final Map<File, Future<BufferedImage>> prefetching = new HashMap<File, Future<BufferedImage>>();
+
+    /**
+     * Creates a workspace of files.
+     * @param files the files, in the order they are stepped through
+     * @param loader the loader that reads ahead
+     */
+    public Workspace(List<File> files, ImageLoader loader) {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("files cannot be empty");
+        }
+        this.files = Collections.unmodifiableList(new ArrayList<File>(files));
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the readable image files in files. Directories are replaced by
+     * the readable images in them, sorted by name.
+     * @param files the files and directories
+     * @return the image files
+     */
+    public static List<File> listImageFiles(List<File> files) {
+        List<File> images = new ArrayList<File>();
+        for (File f : files) {
+            if (f.isDirectory()) {
+                images.addAll(BatchRunner.listFiles(f.getPath()));
+            } else {
+                String ext = ImageFileChooser.getExtension(f);
+                if (f.isFile() && ext != null && ImageFileChooser.canReadSuffix(ext)) {
+                    images.add(f);
+                }
+            }
+        }
+        return images;
+    }
+
+    public List<File> getFiles() {
+        return files;
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public File getFile() {
+        return index < 0 ? null : files.get(index);
+    }
+
+    public boolean hasPrevious() {
+        return index > 0;
+    }
+
+    public boolean hasNext() {
+        return index < files.size() - 1;
+    }
+
+    /**
+     * Selects a file, and reads the PREFETCH files after it ahead. Files that
+     * were waiting to be read ahead, but are no longer among those, are not
+     * read.
+     * @param index the index of the file
+     * @return the selected file
+     */
+    public File select(int index) {
+        this.index = index;
+        Set<File> ahead = new LinkedHashSet<File>(files.subList(index + 1, Math.min(files.size(), index + 1 + PREFETCH)));
+        for (Iterator<Map.Entry<File, Future<BufferedImage>>> it = prefetching.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<File, Future<BufferedImage>> e = it.next();
+            if (!ahead.contains(e.getKey()) || e.getValue().isDone()) {
+                // a file that is being read is finished, and then cached
+                e.getValue().cancel(false);
+                it.remove();
+            }
+        }
+        for (File f : ahead) {
+            if (!prefetching.containsKey(f) && loader.getCached(f) == null) {
+                prefetching.put(f, loader.load(f, null));
+            }
+        }
+        return files.get(index);
+    }
+}
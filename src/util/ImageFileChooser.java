@@ -75,11 +75,11 @@ public class ImageFileChooser extends JFileChooser {
     }
 
     public static boolean canReadSuffix(String suffix) {
-        return ImageIO.getImageReadersBySuffix(suffix).hasNext();
+        return RawImageFile.SUFFIX.equals(suffix) || ImageIO.getImageReadersBySuffix(suffix).hasNext();
     }
 
     public static boolean canWriteSuffix(String suffix) {
-        return ImageIO.getImageWritersBySuffix(suffix).hasNext();
+        return RawImageFile.SUFFIX.equals(suffix) || ImageIO.getImageWritersBySuffix(suffix).hasNext();
     }
 
     static class ImageReaderFileFilter extends FileFilter {
@@ -105,12 +105,9 @@ public class ImageFileChooser extends JFileChooser {
             StringBuilder sb = new StringBuilder("Readable formats [");
             String[] suffixes = ImageIO.getReaderFileSuffixes();
             for (int i = 0; i < suffixes.length; i++) {
-                if (i != 0) {
-                    sb.append(' ');
-                }
-                sb.append('.').append(suffixes[i]);
+                sb.append('.').append(suffixes[i]).append(' ');
             }
-            sb.append(']');
+            sb.append('.').append(RawImageFile.SUFFIX).append(']');
             descr = sb.toString();
         }
     }
@@ -138,12 +135,9 @@ public class ImageFileChooser extends JFileChooser {
             StringBuilder sb = new StringBuilder("Writable formats [");
             String[] suffixes = ImageIO.getWriterFileSuffixes();
             for (int i = 0; i < suffixes.length; i++) {
-                if (i != 0) {
-                    sb.append(' ');
-                }
-                sb.append('.').append(suffixes[i]);
+                sb.append('.').append(suffixes[i]).append(' ');
             }
-            sb.append(']');
+            sb.append('.').append(RawImageFile.SUFFIX).append(']');
             descr = sb.toString();
         }
     }
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2026 agent
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes images in a raw format for working copies: a 16 byte
+ * header followed by the pixels as ARGB ints, row by row. Files are memory
+ * mapped, and the pixels copied straight into or out of the int array of
+ * the image, so opening and saving cost about as much as copying the
+ * pixels.
+ * <p>
+ * The header and the pixels are little-endian. The header holds the magic
+ * number "ICRW", the width, the height, and flags, of which bit 0 is set if
+ * the image has alpha.
+ *
+ * @author agent
+ */
+public class RawImageFile {
+
+    public static final String SUFFIX = "argb";
+    private static final int MAGIC = 'I' | 'C' << 8 | 'R' << 16 | 'W' << 24;
+    private static final int HEADER_BYTES = 16;
+    private static final int FLAG_ALPHA = 1;
+    // the most bytes that are mapped at once
+    private static final long MAP_BYTES = 64L * 1024 * 1024;
+
+    private RawImageFile() {
+    }
+
+    /**
+     * Returns true if f has the suffix of this format.
+     */
+    public static boolean isRawFile(File f) {
+        return SUFFIX.equals(ImageFileChooser.getExtension(f));
+    }
+
+    /**
+     * Reads an image of TYPE_INT_ARGB, or TYPE_INT_RGB if it has no alpha.
+     * @param file the file to read
+     * @return the image
+     * @throws IOException if the file could not be read, or is not in this
+     * format
+     */
+    public static BufferedImage read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException(file.getName() + " is not a raw image.");
+            }
+            IntBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            int magic = header.get(0);
+            int w = header.get(1);
+            int h = header.get(2);
+            int flags = header.get(3);
+            if (magic != MAGIC || w <= 0 || h <= 0 || size != HEADER_BYTES + 4L * w * h) {
+                throw new IOException(file.getName() + " is not a raw image, or it is damaged.");
+            }
+
+            BufferedImage image = new BufferedImage(w, h, (flags & FLAG_ALPHA) != 0
+                    ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int rows = getRowsPerMap(w);
+            for (int y = 0; y < h; y += rows) {
+                int n = Math.min(rows, h - y);
+                map(channel, FileChannel.MapMode.READ_ONLY, HEADER_BYTES + 4L * w * y, 4L * w * n)
+                        .get(pixels, y * w, w * n);
+            }
+            return image;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes image. Images of TYPE_INT_ARGB and TYPE_INT_RGB are copied
+     * straight from their int array, others are converted row by row.
+     * @param image the image to write
+     * @param file the file to write
+     * @throws IOException if the file could not be written
+     */
+    public static void write(BufferedImage image, File file) throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        int type = image.getType();
+        boolean packed = type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long size = HEADER_BYTES + 4L * w * h;
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            IntBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.put(MAGIC).put(w).put(h).put(alpha ? FLAG_ALPHA : 0);
+
+            int[] pixels = null;
+            int offset = 0;
+            int stride = w;
+            if (packed) {
+                WritableRaster raster = image.getRaster();
+                SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+                pixels = db.getData();
+                stride = sm.getScanlineStride();
+                offset = db.getOffset() + sm.getOffset(
+                        -raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+            }
+            int rows = getRowsPerMap(w);
+            int[] row = new int[w];
+            for (int y = 0; y < h; y += rows) {
+                int n = Math.min(rows, h - y);
+                IntBuffer buf = map(channel, FileChannel.MapMode.READ_WRITE, HEADER_BYTES + 4L * w * y, 4L * w * n);
+                if (packed && stride == w) {
+                    buf.put(pixels, offset + y * w, w * n);
+                } else {
+                    for (int i = y; i < y + n; i++) {
+                        if (packed) {
+                            buf.put(pixels, offset + i * stride, w);
+                        } else {
+                            image.getRGB(0, i, w, 1, row, 0, w);
+                            buf.put(row);
+                        }
+                    }
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int getRowsPerMap(int w) {
+        return (int) Math.max(1, MAP_BYTES / (4L * w));
+    }
+
+    private static IntBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size)
+            throws IOException {
+        MappedByteBuffer buf = channel.map(mode, position, size);
+        return buf.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+}